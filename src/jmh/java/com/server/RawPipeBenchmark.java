@@ -0,0 +1,164 @@
+package com.server;
+
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import com.server.portpool.RuleOptions;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One way bulk stream through a single pair on loopback, with the pair forwarding inspected or raw.
+ * A writer thread keeps the first port busy, every operation reads one megabyte from the second one.
+ *
+ * Besides throughput, counters report CPU time the whole process spent per iteration. Clients cost
+ * the same in both modes, so the difference is what raw forwarding saves:
+ * CPU ns per GB = cpuNanos / bytes * 2^30, cycles per GB follow from the clock rate. For cycles
+ * counted by hardware run with -prof perfnorm, cycles per GB are then cycles/op * 1024:
+ * -Djmh.args="RawPipeBenchmark -prof perfnorm"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RawPipeBenchmark {
+    private static final int SENDER_PORT = 21000;
+    private static final int RECEIVER_PORT = 21001;
+    private static final int CHUNK = 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Pipe {
+        @Param({"inspected", "raw"})
+        String mode;
+
+        @Param({"reactor", "blocking"})
+        String engine;
+
+        private IServer server;
+        private Thread serve;
+        private Thread writer;
+        private Socket sender;
+        private Socket receiver;
+        private DataInputStream in;
+        private final byte[] received = new byte[CHUNK];
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            ManageablePortPool pool = new PortPool();
+            pool.addRule(SENDER_PORT, RECEIVER_PORT, RuleOptions.builder().raw("raw".equals(mode)).build());
+
+            Runnable tunnel;
+            if ("blocking".equals(engine)) {
+                BlockingServer blocking = new BlockingServer();
+                blocking.init(64 * 1024, pool);
+                server = blocking;
+                tunnel = blocking;
+            } else {
+                // Inspected pair is lossless through backpressure, raw pair is lossless on its own
+                ReactorGroup group = new ReactorGroup();
+                group.init(64 * 1024, 60000, pool, 1);
+                group.enableBackpressure(256 * 1024, 1024 * 1024);
+                server = group;
+                tunnel = group;
+            }
+
+            serve = new Thread(tunnel, "tunnel");
+            serve.start();
+            if (!server.awaitStarted(5000)) {
+                throw new IllegalStateException("Tunnel did not start");
+            }
+
+            sender = new Socket("localhost", SENDER_PORT);
+            receiver = new Socket("localhost", RECEIVER_PORT);
+            receiver.setSoTimeout(5000);
+            in = new DataInputStream(receiver.getInputStream());
+
+            // Give the loop time to register both ends of the pair
+            Thread.sleep(200);
+
+            writer = new Thread(this::write, "writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void write() {
+            byte[] payload = new byte[CHUNK];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+
+            try {
+                OutputStream out = sender.getOutputStream();
+                while (!Thread.currentThread().isInterrupted()) {
+                    out.write(payload);
+                }
+            } catch (IOException e) {
+                // Sender is closed by tear down
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            writer.interrupt();
+            sender.close();
+            receiver.close();
+            writer.join(5000);
+
+            serve.interrupt();
+            serve.join(5000);
+            server.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cost {
+        public long bytes;
+        public long cpuNanos;
+
+        private long cpuAtStart;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            bytes = 0;
+            cpuNanos = 0;
+            cpuAtStart = processCpuTime();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            cpuNanos = processCpuTime() - cpuAtStart;
+        }
+
+        private static long processCpuTime() {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getProcessCpuTime();
+        }
+    }
+
+    @Benchmark
+    public byte[] stream(Pipe pipe, Cost cost) throws IOException {
+        pipe.in.readFully(pipe.received);
+        cost.bytes += CHUNK;
+        return pipe.received;
+    }
+}
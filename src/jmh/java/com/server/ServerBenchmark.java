@@ -0,0 +1,162 @@
+package com.server;
+
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end round trip through the tunnel on loopback. Every operation writes a payload into the
+ * first port of a pair and reads it back in full from the second one. Sample time mode reports
+ * percentiles, the bytes counter gives throughput in bytes per second.
+ *
+ * Each benchmark thread uses its own pair, so run with no more threads than pairs:
+ * -Djmh.args="ServerBenchmark -t 4 -p pairs=16"
+ *
+ * Both engines are measured, the selector loops of {@link ReactorGroup} and the blocking copy loops of
+ * {@link BlockingServer}. Run on JDK 21 for the latter to use virtual threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ServerBenchmark {
+    private static final int FIRST_PORT = 20000;
+
+    @State(Scope.Benchmark)
+    public static class Tunnel {
+        @Param({"1", "16"})
+        int pairs;
+
+        @Param({"64", "4096"})
+        int payloadSize;
+
+        @Param({"reactor", "blocking"})
+        String engine;
+
+        private IServer server;
+        private Thread serve;
+        private Socket[] senders;
+        private Socket[] receivers;
+        private final AtomicInteger nextPair = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            ManageablePortPool pool = new PortPool();
+            for (int i = 0; i < pairs; i++) {
+                pool.addRule(FIRST_PORT + i * 2, FIRST_PORT + i * 2 + 1);
+            }
+
+            Runnable tunnel;
+            if ("blocking".equals(engine)) {
+                BlockingServer blocking = new BlockingServer();
+                blocking.init(4096, pool);
+                server = blocking;
+                tunnel = blocking;
+            } else {
+                ReactorGroup group = new ReactorGroup();
+                group.init(4096, 60000, pool);
+                group.enableBackpressure(16 * 1024, 64 * 1024);
+                server = group;
+                tunnel = group;
+            }
+
+            serve = new Thread(tunnel, "tunnel");
+            serve.start();
+            Thread.sleep(200);
+
+            senders = new Socket[pairs];
+            receivers = new Socket[pairs];
+            for (int i = 0; i < pairs; i++) {
+                senders[i] = new Socket("localhost", FIRST_PORT + i * 2);
+                receivers[i] = new Socket("localhost", FIRST_PORT + i * 2 + 1);
+                senders[i].setTcpNoDelay(true);
+                receivers[i].setSoTimeout(5000);
+            }
+
+            // Give the loops time to register both ends of every pair
+            Thread.sleep(200);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            for (int i = 0; i < pairs; i++) {
+                senders[i].close();
+                receivers[i].close();
+            }
+
+            serve.interrupt();
+            serve.join(5000);
+            server.shutdown();
+        }
+
+        int nextPair() {
+            int pair = nextPair.getAndIncrement();
+            if (pair >= pairs) {
+                throw new IllegalStateException("More benchmark threads than pairs: " + pairs);
+            }
+
+            return pair;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private OutputStream out;
+        private DataInputStream in;
+        private byte[] payload;
+        private byte[] received;
+
+        @Setup(Level.Trial)
+        public void setUp(Tunnel tunnel) throws IOException {
+            int pair = tunnel.nextPair();
+            out = tunnel.senders[pair].getOutputStream();
+            in = new DataInputStream(tunnel.receivers[pair].getInputStream());
+
+            payload = new byte[tunnel.payloadSize];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+            received = new byte[tunnel.payloadSize];
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Traffic {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public byte[] roundTrip(Client client, Traffic traffic) throws IOException {
+        client.out.write(client.payload);
+        client.in.readFully(client.received);
+        traffic.bytes += client.received.length;
+        return client.received;
+    }
+}
@@ -0,0 +1,65 @@
+package com.server.portpool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule lookups done on every read and every status update, and the listings used on registration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PortPoolBenchmark {
+
+    @Param({"16", "1024"})
+    int rules;
+
+    private PortPool pool;
+    private int[] ports;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        pool = new PortPool();
+        ports = new int[rules * 2];
+
+        for (int i = 0; i < rules; i++) {
+            int port = 10000 + i * 2;
+            pool.addRule(port, port + 1);
+            ports[i * 2] = port;
+            ports[i * 2 + 1] = port + 1;
+        }
+    }
+
+    @Benchmark
+    public int getRule() {
+        next = (next + 1) % ports.length;
+        return pool.getRule(ports[next]);
+    }
+
+    @Benchmark
+    public List<Integer> getPorts() {
+        return pool.getPorts();
+    }
+
+    @Benchmark
+    public Map<Integer, Integer> getRules() {
+        return pool.getRules();
+    }
+}
@@ -0,0 +1,94 @@
+package com.server.session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of passing a message through a session: copying write/flashTo pair and the zero-copy
+ * enqueue/flushTo pair used by the server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SessionBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int payloadSize;
+
+    private Session source;
+    private Session session;
+    private ByteBuffer payload;
+    private ByteBuffer target;
+
+    // Channel taking everything, so only session cost is measured
+    private final WritableByteChannel sink = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int bytes = src.remaining();
+            src.position(src.limit());
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        source = new Session();
+        source.init(payloadSize, 60000, 5000);
+        session = new Session();
+        session.init(payloadSize, 60000, 5001);
+
+        payload = ByteBuffer.allocate(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.put((byte) i);
+        }
+        target = ByteBuffer.allocate(payloadSize);
+    }
+
+    @Benchmark
+    public ByteBuffer writeAndFlashTo() {
+        payload.clear();
+        session.write(payload);
+
+        target.clear();
+        session.flashTo(target);
+        return target;
+    }
+
+    @Benchmark
+    public int enqueueAndFlushTo() throws IOException {
+        ByteBuffer read = source.getReadBuffer();
+        read.clear();
+        payload.clear();
+        read.put(payload);
+        read.flip();
+
+        session.enqueue(source.takeReadBuffer());
+        return session.flushTo(sink);
+    }
+}
@@ -1,32 +1,68 @@
 package com;
 
 import com.config.loader.ConfigLoader;
+import com.config.loader.ConfigWatcher;
 import com.config.loader.InvalidConfigFormatException;
-import com.gui.App;
-import com.gui.BestGui;
 import com.gui.Gui;
 import com.gui.IGui;
-import com.server.Server;
+import com.server.BlockingServer;
+import com.server.IServer;
+import com.server.ReactorGroup;
+import com.server.log.AsyncHandler;
+import com.server.metrics.MetricsEndpoint;
+import com.server.pairing.FifoPairing;
 import com.server.portpool.ManageablePortPool;
 import com.server.portpool.PortPool;
+import com.server.portpool.RuleOptions;
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.file.NoSuchFileException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class ExecutionManager {
     private static final Logger logger = Logger.getLogger(ExecutionManager.class.getName());
 
+    // Time the serving thread has to stop after drain timeout
+    private static final long STOP_GRACE = 2000;
+
     public static void main(String[] args) {
+        long launchedAt = System.nanoTime();
+
+        LaunchOptions launch;
+        try {
+            launch = LaunchOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LaunchOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        if (launch.isHelp()) {
+            System.out.println(LaunchOptions.USAGE);
+            return;
+        }
+
+        // Console output is written by a separate thread when requested
+        if (Boolean.getBoolean("tunnel.log.async")) {
+            AsyncHandler.install(Logger.getLogger(""), 8192);
+        }
+
         // Load config file
         ConfigLoader loader = new ConfigLoader();
         Map<Integer, Integer> rules = null;
+        Map<Integer, RuleOptions> options = new HashMap<>();
         int timeout = 0;
 
         try {
-            loader.parse("config/config.json");
+            loader.parse(launch.getConfigPath());
             rules = loader.getRules();
+            options = loader.getRuleOptions();
             timeout = (int) loader.getTimeout();
         } catch (NoSuchFileException | InvalidConfigFormatException | JSONException e) {
             // Unable to read config file. Continue with default settings
@@ -37,17 +73,95 @@ public class ExecutionManager {
         ManageablePortPool pool = new PortPool();
         assert rules != null;
         for (Map.Entry<Integer, Integer> entry : rules.entrySet()) {
-            pool.addRule(entry.getKey(), entry.getValue());
+            pool.addRule(entry.getKey(), entry.getValue(),
+                    options.getOrDefault(entry.getKey(), RuleOptions.DEFAULT));
         }
 
-        Server server = new Server();
-        server.init(4096, timeout, pool);
+        IServer server;
+        if ("blocking".equals(System.getProperty("tunnel.engine"))) {
+            // Two blocking copy loops per pair, on virtual threads when JDK has them
+            BlockingServer blocking = new BlockingServer();
+            blocking.init(launch.getBufferSize(), pool);
+            server = blocking;
+        } else {
+            // One event loop per core, rules are sharded between loops
+            ReactorGroup group = new ReactorGroup();
+            group.init(launch.getBufferSize(), timeout, pool, launch.getThreads());
+            // Forward without losses when requested, e.g. -Dtunnel.backpressure=true. Reading of a source
+            // stops once its peer has tunnel.backpressure.high bytes queued, 64 KiB by default, and
+            // resumes when the queue is down to tunnel.backpressure.low bytes, 16 KiB by default
+            if (Boolean.getBoolean("tunnel.backpressure")) {
+                group.enableBackpressure(Integer.getInteger("tunnel.backpressure.low", 16 * 1024),
+                        Integer.getInteger("tunnel.backpressure.high", 64 * 1024));
+            }
+            // Connections without traffic or without a pair give their sockets back after the given
+            // milliseconds, e.g. -Dtunnel.idleTimeout=300000. They are kept forever by default
+            long idleTimeout = Long.getLong("tunnel.idleTimeout", 0);
+            if (idleTimeout > 0) {
+                group.enableIdleTimeout(idleTimeout);
+            }
+            // Many clients per rule, each one paired with a client of the opposite port
+            if (Boolean.getBoolean("tunnel.multiConnection")) {
+                group.enableMultiConnection(new FifoPairing());
+            }
+            server = group;
+        }
 
-        // Run GUI
-//        App app = new App(server, pool, loader);
-//        app.createAndRunGUI();
-        IGui gui = new BestGui(server, pool, loader);
-        gui.start();
+        // Metrics for scraping when a port is given, e.g. -Dtunnel.metrics.port=9404
+        Integer metricsPort = Integer.getInteger("tunnel.metrics.port");
+        if (metricsPort != null) {
+            try {
+                new MetricsEndpoint(server).start(new InetSocketAddress(metricsPort));
+            } catch (IOException e) {
+                logger.warning("Unable to start metrics endpoint on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
 
+        // Rules of a running server follow config file
+        Thread watcher = new Thread(new ConfigWatcher(launch.getConfigPath(), server), "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        if (launch.isHeadless()) {
+            runHeadless(server, launch, launchedAt);
+        } else {
+            runGui(server, pool, loader);
+        }
+    }
+
+    /**
+     * Runs the server with no AWT at all. Stop signal drains queued data before connections are closed,
+     * a server not up within startup timeout exits with failure, so a service manager sees it failed.
+     */
+    private static void runHeadless(IServer server, LaunchOptions launch, long launchedAt) {
+        Thread serve = new Thread(server::start, "tunnel");
+        serve.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.drain(launch.getDrainTimeout());
+            try {
+                serve.join(launch.getDrainTimeout() + STOP_GRACE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "tunnel-stop"));
+
+        try {
+            if (!server.awaitStarted(launch.getStartupTimeout())) {
+                logger.severe("Server is not up within " + launch.getStartupTimeout() +
+                        " ms or some ports could not be bound, exiting.");
+                System.exit(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        logger.info("Started in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - launchedAt) + " ms.");
+    }
+
+    private static void runGui(IServer server, ManageablePortPool pool, ConfigLoader loader) {
+        IGui gui = new Gui(server, pool, loader);
+        gui.start();
     }
 }
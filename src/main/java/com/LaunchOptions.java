@@ -0,0 +1,134 @@
+package com;
+
+import com.server.ReactorGroup;
+
+/**
+ * Command line of the tunnel. Every option has a default, so the tunnel starts with no arguments the
+ * way it always did: with GUI and config/config.json.
+ */
+public final class LaunchOptions {
+    public static final String USAGE =
+            "Usage: tunnel [--headless] [--config <path>] [--threads <n>] [--buffer-size <bytes>]\n" +
+            "              [--startup-timeout <ms>] [--drain-timeout <ms>]\n" +
+            "  --headless         run without GUI, e.g. as a service; stops gracefully on SIGTERM\n" +
+            "  --config           config file, config/config.json by default\n" +
+            "  --threads          event loops, one per core by default\n" +
+            "  --buffer-size      read buffer size of a connection, 4096 by default\n" +
+            "  --startup-timeout  exit with failure if ports are not bound in time, 10000 by default\n" +
+            "  --drain-timeout    time queued data has to reach peers on stop, 5000 by default";
+
+    private boolean headless = false;
+    private boolean help = false;
+    private String configPath = "config/config.json";
+    private int threads = ReactorGroup.defaultThreads();
+    private int bufferSize = 4096;
+    private long startupTimeout = 10000;
+    private long drainTimeout = 5000;
+
+    private LaunchOptions() {
+    }
+
+    /**
+     * Options are given as "--name value" or "--name=value".
+     *
+     * @throws IllegalArgumentException if an option is unknown or has a wrong value
+     */
+    public static LaunchOptions parse(String[] args) {
+        LaunchOptions options = new LaunchOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            String value = null;
+
+            int equals = name.indexOf('=');
+            if (equals > 0) {
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }
+
+            switch (name) {
+                case "--headless":
+                    options.headless = true;
+                    continue;
+                case "--help":
+                case "-h":
+                    options.help = true;
+                    continue;
+                default:
+                    break;
+            }
+
+            if (value == null) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Option " + name + " needs a value.");
+                }
+                value = args[++i];
+            }
+
+            switch (name) {
+                case "--config":
+                    options.configPath = value;
+                    break;
+                case "--threads":
+                    options.threads = positive(name, value);
+                    break;
+                case "--buffer-size":
+                    options.bufferSize = positive(name, value);
+                    break;
+                case "--startup-timeout":
+                    options.startupTimeout = positive(name, value);
+                    break;
+                case "--drain-timeout":
+                    options.drainTimeout = positive(name, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name + ".");
+            }
+        }
+
+        return options;
+    }
+
+    private static int positive(String name, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + name + " needs a number, got " + value + ".");
+        }
+
+        if (number <= 0) {
+            throw new IllegalArgumentException("Option " + name + " must be positive, got " + value + ".");
+        }
+
+        return number;
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    public boolean isHelp() {
+        return help;
+    }
+
+    public String getConfigPath() {
+        return configPath;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getStartupTimeout() {
+        return startupTimeout;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+}
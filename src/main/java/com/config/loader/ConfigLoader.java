@@ -1,6 +1,7 @@
 package com.config.loader;
 
 import com.server.portpool.BasicPortPool;
+import com.server.portpool.RuleOptions;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -14,6 +15,7 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,6 +23,18 @@ import java.util.logging.Logger;
 
 public class ConfigLoader implements ConfigSaver {
     private static final Logger logger = Logger.getLogger(ConfigLoader.class.getName());
+
+    // Keys of rule socket options, a rule with options is written as [portA, portB, {options}]
+    private static final String NODELAY = "nodelay";
+    private static final String RCVBUF = "rcvbuf";
+    private static final String SNDBUF = "sndbuf";
+    private static final String KEEPALIVE = "keepalive";
+    private static final String LINGER = "linger";
+    private static final String BACKLOG = "backlog";
+    private static final String REUSEPORT = "reuseport";
+    private static final String RAW = "raw";
+    private static final String CAPTURE = "capture";
+    private static final String CAPTURESIZE = "capturesize";
     private JSONObject config = new JSONObject();
 
     private void parseJsonString(String jsonString) throws JSONException {
@@ -59,7 +73,7 @@ public class ConfigLoader implements ConfigSaver {
             for (int i = 0; i < rulesArray.length(); i++) {
                 JSONArray pair = rulesArray.getJSONArray(i);
 
-                if (pair.length() != 2) {
+                if (!isRule(pair)) {
                     logger.log(Level.WARNING, "Config contains wrong format rule at position " + i +
                             ". Skipping rule " + pair.toString());
                     continue;
@@ -74,6 +88,122 @@ public class ConfigLoader implements ConfigSaver {
         return rules;
     }
 
+    /**
+     * Socket options of rules that have them, keyed by the first port of a rule. Rules without options
+     * are not listed and use defaults.
+     */
+    public Map<Integer, RuleOptions> getRuleOptions() throws InvalidConfigFormatException {
+        Map<Integer, RuleOptions> options = new HashMap<>();
+
+        if (!this.config.has("rules")) {
+            return options;
+        }
+
+        try {
+            JSONArray rulesArray = config.getJSONArray("rules");
+
+            for (int i = 0; i < rulesArray.length(); i++) {
+                JSONArray pair = rulesArray.getJSONArray(i);
+
+                if (isRule(pair) && pair.length() == 3) {
+                    options.put(pair.getInt(0), parseOptions(pair.getJSONObject(2)));
+                }
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new InvalidConfigFormatException(config.toString() + "\n" + e.getMessage());
+        }
+
+        return options;
+    }
+
+    private static boolean isRule(JSONArray pair) {
+        return pair.length() == 2 || (pair.length() == 3 && pair.optJSONObject(2) != null);
+    }
+
+    private static RuleOptions parseOptions(JSONObject object) throws JSONException {
+        RuleOptions.Builder options = RuleOptions.builder();
+
+        Iterator<?> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+
+            switch (key) {
+                case NODELAY:
+                    options.tcpNoDelay(object.getBoolean(key));
+                    break;
+                case RCVBUF:
+                    options.receiveBufferSize(object.getInt(key));
+                    break;
+                case SNDBUF:
+                    options.sendBufferSize(object.getInt(key));
+                    break;
+                case KEEPALIVE:
+                    options.keepAlive(object.getBoolean(key));
+                    break;
+                case LINGER:
+                    options.linger(object.getInt(key));
+                    break;
+                case BACKLOG:
+                    options.backlog(object.getInt(key));
+                    break;
+                case REUSEPORT:
+                    options.reusePort(object.getBoolean(key));
+                    break;
+                case RAW:
+                    options.raw(object.getBoolean(key));
+                    break;
+                case CAPTURE:
+                    options.capture(object.getString(key));
+                    break;
+                case CAPTURESIZE:
+                    options.captureSize(object.getInt(key));
+                    break;
+                default:
+                    logger.log(Level.WARNING, "Unknown rule option " + key + " is skipped.");
+            }
+        }
+
+        return options.build();
+    }
+
+    private static JSONObject toJson(RuleOptions options) throws JSONException {
+        JSONObject object = new JSONObject();
+
+        // Only options that differ from defaults are written
+        if (options.getTcpNoDelay() != null) {
+            object.put(NODELAY, options.getTcpNoDelay());
+        }
+        if (options.getReceiveBufferSize() != null) {
+            object.put(RCVBUF, options.getReceiveBufferSize());
+        }
+        if (options.getSendBufferSize() != null) {
+            object.put(SNDBUF, options.getSendBufferSize());
+        }
+        if (options.getKeepAlive() != null) {
+            object.put(KEEPALIVE, options.getKeepAlive());
+        }
+        if (options.getLinger() != null) {
+            object.put(LINGER, options.getLinger());
+        }
+        if (options.getBacklog() != 0) {
+            object.put(BACKLOG, options.getBacklog());
+        }
+        if (options.isReusePort()) {
+            object.put(REUSEPORT, true);
+        }
+        if (options.isRaw()) {
+            object.put(RAW, true);
+        }
+        if (options.getCapture() != null) {
+            object.put(CAPTURE, options.getCapture());
+        }
+        if (options.getCaptureSize() != RuleOptions.DEFAULT_CAPTURE_SIZE) {
+            object.put(CAPTURESIZE, options.getCaptureSize());
+        }
+
+        return object;
+    }
+
     public void parse(String path) throws NoSuchFileException, InvalidConfigFormatException {
         logger.info("Parsing config file " + path + " ...");
 
@@ -102,11 +232,20 @@ public class ConfigLoader implements ConfigSaver {
 
         // Store rules array
         JSONArray rules = new JSONArray();
-        for (Map.Entry entry : pool.getRules().entrySet()) {
+        for (Map.Entry<Integer, Integer> entry : pool.getRules().entrySet()) {
             JSONArray rule = new JSONArray();
             rule.put(entry.getKey());
             rule.put(entry.getValue());
 
+            RuleOptions options = pool.getOptions(entry.getKey());
+            if (!options.isDefault()) {
+                try {
+                    rule.put(toJson(options));
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+
             rules.put(rule);
         }
 
@@ -0,0 +1,78 @@
+package com.config.loader;
+
+import com.server.IServer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Watches config file and applies its rules to a running server whenever the file is written.
+ * A file that can not be read or parsed is skipped, the server keeps its current rules.
+ */
+public class ConfigWatcher implements Runnable {
+    private static final Logger logger = Logger.getLogger(ConfigWatcher.class.getName());
+    private final Path path;
+    private final IServer server;
+
+    public ConfigWatcher(String path, IServer server) {
+        this.path = Paths.get(path).toAbsolutePath();
+        this.server = server;
+    }
+
+    public void reload() {
+        // Loader of its own, the one used by GUI is not touched from watcher thread
+        ConfigLoader loader = new ConfigLoader();
+
+        try {
+            loader.parse(path.toString());
+            server.applyRules(loader.getRules(), loader.getRuleOptions());
+        } catch (NoSuchFileException | InvalidConfigFormatException e) {
+            logger.log(Level.WARNING, "Unable to reload config " + path + ". Rules are not changed.", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            logger.info("Watching config file " + path + " for changes.");
+
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+
+                // Events of one write come together, config is read once for all of them
+                if (changed) {
+                    reload();
+                }
+
+                if (!key.reset()) {
+                    logger.warning("Config directory of " + path + " is no longer accessible.");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to watch config file " + path + ".", e);
+        }
+    }
+}
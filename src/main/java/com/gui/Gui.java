@@ -2,10 +2,13 @@ package com.gui;
 
 import com.config.loader.ConfigSaver;
 import com.server.IServer;
+import com.server.Server;
+import com.server.log.PayloadTrace;
+import com.server.log.RingBuffer;
 import com.server.portpool.ManageablePortPool;
-import com.server.status.IManageableStatus;
-import com.server.status.IStatus;
 import com.server.status.Status;
+import com.server.status.StatusFeed;
+import com.server.status.StatusSnapshot;
 
 import javax.swing.*;
 import javax.swing.event.TreeExpansionEvent;
@@ -16,20 +19,23 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.html.HTMLDocument;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
-import javax.swing.tree.DefaultTreeModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.net.URL;
-import java.time.LocalDateTime;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Handler;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 public class Gui implements IGui, Runnable {
+    // Milliseconds between status events, changes within a period are shown together
+    private static final long STATUS_PERIOD = 500;
+
     private final IServer server;
     private final ManageablePortPool pool;
     private final ConfigSaver configSaver;
@@ -40,15 +46,24 @@ public class Gui implements IGui, Runnable {
     private JScrollPane scrollPane;
     private JTextArea logArea;
     private JTextPane logPane;
+    private RuleTreeModel ruleModel;
+
+    // Status changes pushed by the server and not yet shown
+    private final StatusFeed statusFeed;
+    private final Map<Integer, StatusSnapshot> pendingChanges = new ConcurrentHashMap<>();
+    private final Map<Integer, Map.Entry<Integer, Integer>> pendingRemovals = new ConcurrentHashMap<>();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
 
     // Selected port pair
-    private Map<Integer, Integer> selectedPair = new HashMap<>();
+    // Changed on the event dispatch thread and read by logging threads
+    private Map<Integer, Integer> selectedPair = new ConcurrentHashMap<>();
 
     public Gui(IServer server, ManageablePortPool pool, ConfigSaver configSaver) {
         // Set instances
         this.server = server;
         this.pool = pool;
         this.configSaver = configSaver;
+        this.statusFeed = new StatusFeed(server::getStatuses, STATUS_PERIOD);
 
         prepareGUI();
 
@@ -69,7 +84,6 @@ public class Gui implements IGui, Runnable {
 
         // Initialize info tree
         updateRuleTree();
-        updateRulesStatus();
 
         // Set tree listeners
         setResourceListeners();
@@ -92,18 +106,25 @@ public class Gui implements IGui, Runnable {
         // Listener for logging
         resourceTree.addTreeSelectionListener(e -> {
             // Erase logger focus
+            for (Map.Entry<Integer, Integer> pair : selectedPair.entrySet()) {
+                PayloadTrace.disable(pair.getKey());
+                PayloadTrace.disable(pair.getValue());
+            }
             selectedPair.clear();
 
             // Get rule
             DefaultMutableTreeNode selectedNode =
                     (DefaultMutableTreeNode) resourceTree.getLastSelectedPathComponent();
 
-            if (selectedNode.getParent() == selectedNode.getRoot()) {
+            // Selection is cleared when the selected rule is removed
+            if (selectedNode != null && selectedNode.getParent() == selectedNode.getRoot()) {
                 int portA = (int) ((Map.Entry) selectedNode.getUserObject()).getKey();
                 int portB = (int) ((Map.Entry) selectedNode.getUserObject()).getValue();
 
-                // Set logging for selected rule
+                // Set logging for selected rule, payload is dumped for it as well
                 selectedPair.put(portA, portB);
+                PayloadTrace.enable(portA);
+                PayloadTrace.enable(portB);
             }
         });
 
@@ -120,82 +141,53 @@ public class Gui implements IGui, Runnable {
     }
 
     private void setLoggerOutput() {
-        Logger logger = Logger.getLogger(server.getClass().getName());
+        // Forwarding is logged by event loops, whatever server implementation runs them
+        Logger logger = Logger.getLogger(Server.class.getName());
         Handler handler = new TextPaneComponentHandler(logPane);
         logger.addHandler(handler);
     }
 
-    private void updateRulesStatus() {
-        DefaultTreeModel model = (DefaultTreeModel) resourceTree.getModel();
-        DefaultMutableTreeNode root = (DefaultMutableTreeNode) model.getRoot();
-
-        Enumeration en = root.depthFirstEnumeration();
-        while (en.hasMoreElements()) {
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode) en.nextElement();
-
-            // Rules are first generation children
-            if (node.getParent() == root) {
-                Map.Entry portPair = (Map.Entry) node.getUserObject();
-                IStatus status = server.getStatus((int) portPair.getKey());
-
-                // Server not running -> render form for status
-                if (status == null) {
-                    IManageableStatus emptyStatus = new Status(portPair);
-                    attachStatus(node, emptyStatus);
-                } else {
-                    node.removeAllChildren();
-                    attachStatus(node, status);
-                }
-
-            }
+    private void updateRuleTree() {
+        // Rules are shown with empty statuses until the server reports them
+        ruleModel = new RuleTreeModel();
+        for (Map.Entry<Integer, Integer> entry : pool.getRules().entrySet()) {
+            ruleModel.update(new Status(entry));
         }
+
+        resourceTree.setModel(ruleModel);
     }
 
-    private void attachStatus(DefaultMutableTreeNode node, IStatus status) {
-        // Add state
-        String connectionState = "Состояние: ";
-        if (status.isConnected()) {
-            connectionState += "Подключение активно";
-        } else {
-            connectionState += "Соединения нет";
+    // Called by the feed thread, changes are merged until the event dispatch thread takes them
+    private void statusesChanged(List<StatusSnapshot> changed, List<Map.Entry<Integer, Integer>> removed) {
+        for (Map.Entry<Integer, Integer> rule : removed) {
+            pendingChanges.remove(rule.getKey());
+            pendingRemovals.put(rule.getKey(), rule);
+        }
+        for (StatusSnapshot status : changed) {
+            pendingRemovals.remove(status.getRule().getKey());
+            pendingChanges.put(status.getRule().getKey(), status);
         }
 
-        DefaultMutableTreeNode connectionNode = new DefaultMutableTreeNode(connectionState);
-
-        // Add received info
-        DefaultMutableTreeNode receivedNode = new DefaultMutableTreeNode("Принято байт: "
-                + status.getRecv());
-
-        // Add sent info
-        DefaultMutableTreeNode sentNode = new DefaultMutableTreeNode("Отправлено байт: "
-                + status.getSent());
-
-        // Add last connection date
-        LocalDateTime lastConnected = status.getLastTimeConnected();
-        String connected = (lastConnected == null) ? "" : lastConnected.toString();
-        DefaultMutableTreeNode dateNode = new DefaultMutableTreeNode("Последнее подключение: "
-                + connected);
-
-        node.add(connectionNode);
-        node.add(receivedNode);
-        node.add(sentNode);
-        node.add(dateNode);
+        if (updateScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::applyStatusChanges);
+        }
     }
 
-    private void updateRuleTree() {
-        // Get all rules
-        Map<Integer, Integer> portRules = pool.getRules();
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Root");
-
-        // Add rules to root
-        for (Map.Entry<Integer, Integer> entry: portRules.entrySet()) {
-            DefaultMutableTreeNode node = new DefaultMutableTreeNode(entry);
-            root.add(node);
-        }
+    private void applyStatusChanges() {
+        updateScheduled.set(false);
 
-        // Setup JTree model
-        DefaultTreeModel model = new DefaultTreeModel(root);
-        resourceTree.setModel(model);
+        for (Integer port : pendingRemovals.keySet()) {
+            Map.Entry<Integer, Integer> rule = pendingRemovals.remove(port);
+            if (rule != null) {
+                ruleModel.remove(rule);
+            }
+        }
+        for (Integer port : pendingChanges.keySet()) {
+            StatusSnapshot status = pendingChanges.remove(port);
+            if (status != null) {
+                ruleModel.update(status);
+            }
+        }
     }
 
     @Override
@@ -211,17 +203,14 @@ public class Gui implements IGui, Runnable {
 
     @Override
     public void shutdown() {
-
+        statusFeed.stop();
     }
 
     @Override
     public void run() {
-        // Setup timer and update rules statuses
-        Timer timer = new Timer(1000, e -> {
-            updateRulesStatus();
-            SwingUtilities.updateComponentTreeUI(resourceTree);
-        });
-        timer.start();
+        // Only rules changed since the previous event are pushed, at most once per period
+        statusFeed.addListener(this::statusesChanged);
+        statusFeed.start();
     }
 
     //
@@ -256,14 +245,7 @@ public class Gui implements IGui, Runnable {
 
             DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
             if (node.getDepth() == 1) {
-                // Get status object
-                DefaultMutableTreeNode connected = (DefaultMutableTreeNode) node.getChildAt(0);
-
-                // Dirty hack not to store status object inside JTree
-                String connectionStatus = connected.toString();
-                // Awful code next (checks last char of status string)
-                // note sign o in cyrillic
-                if (connectionStatus.charAt(connectionStatus.length() - 1) == 'о') {
+                if (RuleTreeModel.isConnected(node)) {
                     setIcon(icon_ok);
                 } else {
                     setIcon(icon_no);
@@ -333,8 +315,27 @@ public class Gui implements IGui, Runnable {
         public void close() throws SecurityException {/**/}
     }
 
+    /**
+     * Logging threads only put records into a bounded lock-free ring and never touch Swing, a full
+     * ring drops records and counts them. A Swing timer drains the ring in batches on the event
+     * dispatch thread, inserts each batch into the document at once and trims the oldest text when
+     * the document grows past its cap.
+     */
     private final class TextPaneComponentHandler extends Handler {
+        private static final int CAPACITY = 4096;
+        // Records appended to the pane per drain, older ones of a burst are counted as skipped
+        private static final int BATCH = 512;
+        private static final int DRAIN_PERIOD = 100;
+        // Characters kept in the pane, trimmed to three quarters of it to not trim on every batch
+        private static final int MAX_DOCUMENT_LENGTH = 256 * 1024;
+
         private final JTextPane text;
+        private final RingBuffer<LogRecord> ring = new RingBuffer<>(CAPACITY);
+        private final Timer drainer;
+        private final StringBuilder batch = new StringBuilder();
+        private final ArrayDeque<LogRecord> shown = new ArrayDeque<>(BATCH);
+        private long skipped = 0;
+        private long reportedDrops = 0;
         SimpleAttributeSet keyWord = new SimpleAttributeSet();
 
         TextPaneComponentHandler(JTextPane text) {
@@ -343,53 +344,99 @@ public class Gui implements IGui, Runnable {
             StyleConstants.setForeground(keyWord, Color.RED);
             StyleConstants.setBackground(keyWord, Color.YELLOW);
             StyleConstants.setBold(keyWord, true);
+
+            drainer = new Timer(DRAIN_PERIOD, e -> drain());
+            drainer.start();
         }
+
         @Override
         public void publish(LogRecord record) {
-            if (isLoggable(record))
-                synchronized(text) {
-                    int port = (int)record.getParameters()[1];
-                    // log if general info
-                    if (port == -1 || record.getParameters().length == 1) {
-                        HTMLDocument doc = (HTMLDocument) text.getStyledDocument();
+            if (isLoggable(record) && isShown(record)) {
+                ring.offer(record);
+            }
+        }
 
+        private boolean isShown(LogRecord record) {
+            Object[] parameters = record.getParameters();
+            if (parameters == null || parameters.length == 0) {
+                return false;
+            }
+            if (parameters.length == 1) {
+                return true;
+            }
 
-                        String data = "<i>" + record.getSourceClassName() + "</i> " + record.getSourceMethodName() + "<br />" +
-                                record.getParameters()[0] + "<br /><br />";
+            int port = (int) parameters[1];
+            // log if general info or rule selected
+            return port == -1 || selectedPair.containsKey(port) || selectedPair.containsValue(port);
+        }
 
-                        try {
-                            doc.insertAfterEnd(doc.getCharacterElement(doc.getLength()), data);
-                        } catch (BadLocationException | IOException e) {
-                            e.printStackTrace();
-                        }
-                        // Tell logger scroll to scroll bottom
-                        text.setCaretPosition(text.getDocument().getLength());
-                    }
-                    // log if rule selected
+        private void drain() {
+            // Ring is emptied on every tick, so producers find room in it. Records arriving meanwhile
+            // wait for the next tick, only the append to the pane is limited
+            ring.drain(this::keep, CAPACITY);
 
-                    if (selectedPair.containsKey(port) || selectedPair.containsValue(port)) {
-                        HTMLDocument doc = (HTMLDocument) text.getStyledDocument();
-
-                        String data = "<br /><i>" + record.getSourceClassName() + "</i> " + record.getSourceMethodName() + "<br />" +
-                                record.getParameters()[0] + "<br />";
-                        try {
-                            doc.insertAfterEnd(doc.getCharacterElement(doc.getLength()), data);
-                        } catch (BadLocationException | IOException e) {
-                            e.printStackTrace();
-                        }
-                        // Tell logger scroll to scroll bottom
-                        text.setCaretPosition(text.getDocument().getLength());
-                    }
+            batch.setLength(0);
+            LogRecord record;
+            while ((record = shown.poll()) != null) {
+                format(record);
+            }
+
+            long drops = ring.getDropped() + skipped;
+            if (drops > reportedDrops) {
+                batch.append("<b>Пропущено записей журнала: ").append(drops - reportedDrops)
+                        .append("</b><br /><br />");
+                reportedDrops = drops;
+            }
 
+            if (batch.length() == 0) {
+                return;
+            }
 
+            HTMLDocument doc = (HTMLDocument) text.getStyledDocument();
+            try {
+                doc.insertAfterEnd(doc.getCharacterElement(doc.getLength()), batch.toString());
 
+                if (doc.getLength() > MAX_DOCUMENT_LENGTH) {
+                    doc.remove(0, doc.getLength() - MAX_DOCUMENT_LENGTH * 3 / 4);
                 }
+            } catch (BadLocationException | IOException e) {
+                e.printStackTrace();
+            }
+
+            // Tell logger scroll to scroll bottom
+            text.setCaretPosition(doc.getLength());
+        }
+
+        private void keep(LogRecord record) {
+            if (shown.size() == BATCH) {
+                shown.poll();
+                skipped++;
+            }
+            shown.add(record);
+        }
+
+        private void format(LogRecord record) {
+            Object[] parameters = record.getParameters();
+            boolean general = parameters.length == 1 || (int) parameters[1] == -1;
+
+            // Records of a selected rule are set apart from general ones
+            if (!general) {
+                batch.append("<br />");
+            }
+            batch.append("<i>").append(record.getSourceClassName()).append("</i> ")
+                    .append(record.getSourceMethodName()).append("<br />")
+                    .append(parameters[0]).append("<br />");
+            if (general) {
+                batch.append("<br />");
+            }
         }
 
         @Override
         public void flush() { }
 
         @Override
-        public void close() throws SecurityException { }
+        public void close() throws SecurityException {
+            drainer.stop();
+        }
     }
 }
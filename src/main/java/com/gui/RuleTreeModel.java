@@ -0,0 +1,109 @@
+package com.gui;
+
+import com.server.status.ILatencyStatus;
+import com.server.status.IStatus;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tree of rules with their statuses. Nodes are created once per rule and updated in place, only
+ * lines whose text changed are reported to the tree, so an update costs in proportion to the rules
+ * that moved rather than to all rules. Must be used on the event dispatch thread.
+ */
+class RuleTreeModel extends DefaultTreeModel {
+    private static final long serialVersionUID = 1L;
+
+    // Rule nodes by first port
+    private final Map<Integer, RuleNode> rules = new HashMap<>();
+
+    RuleTreeModel() {
+        super(new DefaultMutableTreeNode("Root"));
+    }
+
+    /**
+     * Adds the rule if it is new and updates the lines that differ from the status.
+     */
+    void update(IStatus status) {
+        Map.Entry<Integer, Integer> rule = status.getRule();
+        DefaultMutableTreeNode root = (DefaultMutableTreeNode) getRoot();
+
+        RuleNode node = rules.get(rule.getKey());
+        boolean added = node == null;
+        if (added) {
+            node = new RuleNode(rule);
+            rules.put(rule.getKey(), node);
+        }
+
+        String[] lines = describe(status);
+        for (int i = 0; i < lines.length; i++) {
+            if (i == node.getChildCount()) {
+                node.add(new DefaultMutableTreeNode(lines[i]));
+                if (!added) {
+                    nodesWereInserted(node, new int[]{i});
+                }
+                continue;
+            }
+
+            DefaultMutableTreeNode line = (DefaultMutableTreeNode) node.getChildAt(i);
+            if (!lines[i].equals(line.getUserObject())) {
+                line.setUserObject(lines[i]);
+                nodeChanged(line);
+            }
+        }
+
+        // Icon of the rule follows its state
+        boolean stateChanged = node.connected != status.isConnected();
+        node.connected = status.isConnected();
+
+        if (added) {
+            insertNodeInto(node, root, root.getChildCount());
+        } else if (stateChanged) {
+            nodeChanged(node);
+        }
+    }
+
+    void remove(Map.Entry<Integer, Integer> rule) {
+        RuleNode node = rules.remove(rule.getKey());
+        if (node != null) {
+            removeNodeFromParent(node);
+        }
+    }
+
+    static boolean isConnected(Object node) {
+        return node instanceof RuleNode && ((RuleNode) node).connected;
+    }
+
+    private static String[] describe(IStatus status) {
+        LocalDateTime lastConnected = status.getLastTimeConnected();
+        String connected = (lastConnected == null) ? "" : lastConnected.toString();
+
+        String state = "Состояние: " + (status.isConnected() ? "Подключение активно" : "Соединения нет");
+        String received = "Принято байт: " + status.getRecv();
+        String sent = "Отправлено байт: " + status.getSent();
+        String date = "Последнее подключение: " + connected;
+
+        if (status instanceof ILatencyStatus) {
+            ILatencyStatus latency = (ILatencyStatus) status;
+            return new String[]{state, received, sent, date,
+                    "Задержка доставки: " + latency.getDwellLatency(),
+                    "Время в очереди: " + latency.getQueueLatency()};
+        }
+
+        return new String[]{state, received, sent, date};
+    }
+
+    // User object stays the rule, so selection handling reads ports from it
+    private static final class RuleNode extends DefaultMutableTreeNode {
+        private static final long serialVersionUID = 1L;
+
+        private boolean connected;
+
+        RuleNode(Map.Entry<Integer, Integer> rule) {
+            super(rule);
+        }
+    }
+}
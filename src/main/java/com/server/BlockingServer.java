@@ -0,0 +1,571 @@
+package com.server;
+
+import com.server.buffer.BufferPool;
+import com.server.capture.CaptureRing;
+import com.server.log.TunnelLog;
+import com.server.portpool.BasicPortPool;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.RuleChanges;
+import com.server.portpool.RuleOptions;
+import com.server.session.Session;
+import com.server.status.IManageableStatus;
+import com.server.status.IStatus;
+import com.server.status.Status;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.InvalidParameterException;
+import java.time.LocalDateTime;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Forwarding engine with blocking sockets, an alternative to the selector loops of {@link Server}.
+ * Every port has an accept loop and every connected pair has two copy loops, one per direction, each
+ * running on a thread of its own: a virtual thread on JDK 21 and later, a platform thread otherwise.
+ *
+ * Connections are paired in arrival order, a connection waits for one on the opposite port of its rule.
+ * Data of a waiting connection stays in its socket, so the sender is held back by TCP flow control and
+ * nothing is lost. Closing either side of a pair closes the other one.
+ */
+public class BlockingServer implements Runnable, IServer {
+
+    private static final TunnelLog log = TunnelLog.getLog(BlockingServer.class);
+    // Time copy loops have to end once their connections are closed
+    private static final long STOP_TIMEOUT = 5000;
+    private int bufferSize;
+    private BasicPortPool pool;
+    private ExecutorService threads;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile boolean startFailed = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile long drainDeadline = 0;
+
+    // Listening sockets and connections, pool and waiting queues are guarded by the server lock
+    private final Map<Integer, ServerSocketChannel> listeners = new ConcurrentHashMap<>();
+    private final Set<SocketChannel> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<Integer, ArrayDeque<SocketChannel>> waiting = new HashMap<>();
+
+    // Status of every rule under its first port, and open pairs of a rule by its status under the server lock
+    private final Map<Integer, IManageableStatus> statuses = new ConcurrentHashMap<>();
+    private final Map<IManageableStatus, Integer> openPairs = new HashMap<>();
+
+    // Traffic capture of rules that ask for it
+    private final RuleCaptures captures = new RuleCaptures();
+
+    public void init(int bufferSize, BasicPortPool pool) {
+        this.bufferSize = bufferSize;
+        this.pool = pool;
+
+        statuses.clear();
+        for (Map.Entry<Integer, Integer> entry : pool.getRules().entrySet()) {
+            statuses.put(entry.getKey(), new Status(entry));
+            captures.open(entry.getKey(), entry.getValue(), pool.getOptions(entry.getKey()));
+        }
+    }
+
+    /**
+     * Virtual threads are looked up reflectively, so the engine builds for Java 8 and still gets them
+     * when it runs on JDK 21.
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.log(Level.INFO, "Virtual threads are not available, platform threads are used.", -1);
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    public void start() {
+        run();
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            threads = newThreadPerTaskExecutor();
+
+            boolean bound = true;
+            for (Map.Entry<Integer, Integer> rule : pool.getRules().entrySet()) {
+                RuleOptions options = pool.getOptions(rule.getKey());
+                bound &= listen(rule.getKey(), options);
+                bound &= listen(rule.getValue(), options);
+            }
+
+            // Server serves the ports it could bind, start is reported as failed if any port is missing
+            if (bound) {
+                log.log(Level.INFO, "Server is up.", -1);
+            } else {
+                startFailed = true;
+                log.log(Level.SEVERE, "Server is up, but not every port of its rules is bound.", -1);
+            }
+        }
+
+        started.countDown();
+
+        try {
+            stopped.await();
+            awaitDrained();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        stop();
+        reportLeaks();
+        log.log(Level.INFO, "Server is stopped.", -1);
+    }
+
+    @Override
+    public void shutdown() {
+        stopped.countDown();
+    }
+
+    /**
+     * @return false if server is not up within timeout, or some port of its rules could not be bound
+     */
+    @Override
+    public boolean awaitStarted(long timeoutMillis) throws InterruptedException {
+        return started.await(timeoutMillis, TimeUnit.MILLISECONDS) && !startFailed;
+    }
+
+    /**
+     * Stops accepting and shuts input of connections down. Copy loops then write what their sockets
+     * have received already and close their pairs, the server stops once they are done or timeout passes.
+     */
+    @Override
+    public void drain(long timeoutMillis) {
+        synchronized (this) {
+            drainDeadline = System.currentTimeMillis() + Math.max(1, timeoutMillis);
+
+            for (Map.Entry<Integer, ServerSocketChannel> listener : listeners.entrySet()) {
+                close(listener.getValue(), listener.getKey());
+            }
+
+            // Waiting connections have no peer to drain to
+            for (ArrayDeque<SocketChannel> peers : waiting.values()) {
+                for (SocketChannel connection : peers) {
+                    connections.remove(connection);
+                    close(connection, -1);
+                }
+            }
+            waiting.clear();
+
+            for (SocketChannel connection : connections) {
+                try {
+                    connection.shutdownInput();
+                } catch (IOException e) {
+                    close(connection, -1);
+                }
+            }
+        }
+
+        log.log(Level.INFO, "Draining queued data.", -1);
+        stopped.countDown();
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        if (drainDeadline == 0) {
+            return;
+        }
+
+        while (!connections.isEmpty()) {
+            if (System.currentTimeMillis() >= drainDeadline) {
+                log.log(Level.WARNING, "Drain timed out, data still queued is dropped.", -1);
+                return;
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    private synchronized void stop() {
+        for (ServerSocketChannel listener : listeners.values()) {
+            close(listener, -1);
+        }
+        listeners.clear();
+
+        for (SocketChannel connection : connections) {
+            close(connection, -1);
+        }
+        connections.clear();
+        waiting.clear();
+        captures.closeAll();
+
+        threads.shutdownNow();
+    }
+
+    /**
+     * Copy loops give their buffers back as they end, leaks are reported once all of them are done.
+     */
+    private void reportLeaks() {
+        try {
+            if (threads.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                BufferPool.shared().reportLeaks();
+            } else {
+                log.log(Level.WARNING, "Copy loops are still running, buffers are not checked for leaks.", -1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false if port could not be bound
+     */
+    private boolean listen(int port, RuleOptions options) {
+        ServerSocketChannel listener;
+        try {
+            listener = ServerSocketChannel.open();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to open server socket on port " + port + ". " + e.getMessage(), port);
+            return false;
+        }
+
+        try {
+            SocketOptions.configureListening(listener, options, port);
+            listener.bind(new InetSocketAddress(port), options.getBacklog());
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Can not bind server socket to port " + port + ". " + e.getMessage(), port);
+            close(listener, port);
+            return false;
+        }
+
+        listeners.put(port, listener);
+        threads.execute(() -> acceptLoop(port, listener, options));
+        return true;
+    }
+
+    private void acceptLoop(int port, ServerSocketChannel listener, RuleOptions options) {
+        while (listener.isOpen()) {
+            SocketChannel connection;
+            try {
+                connection = listener.accept();
+            } catch (IOException e) {
+                // Closed listener ends the loop, its rule is unbound
+                if (listener.isOpen()) {
+                    log.log(Level.SEVERE, "Unable to accept connection: " + e.getMessage(), port);
+                }
+                return;
+            }
+
+            log.log(Level.INFO, "Accepting connection for port " + port + ".", port);
+            SocketOptions.configureConnection(connection, options, port);
+            connected(port, connection);
+        }
+    }
+
+    /**
+     * What copy loops of a pair need from the rule. Taken under the server lock when the pair is made,
+     * copy threads then never read the pool while rules change.
+     */
+    private static final class Pair {
+        final IManageableStatus status;
+        final boolean raw;
+        final CaptureRing capture;
+
+        // Copy loops still running, the last one closes the pair
+        final AtomicInteger running = new AtomicInteger(2);
+
+        Pair(IManageableStatus status, boolean raw, CaptureRing capture) {
+            this.status = status;
+            this.raw = raw;
+            this.capture = capture;
+        }
+    }
+
+    private void connected(int port, SocketChannel connection) {
+        SocketChannel peer;
+        ByteBuffer pending = null;
+        int dest;
+        IManageableStatus status;
+        Pair pair;
+        boolean first;
+
+        synchronized (this) {
+            dest = pool.getRule(port);
+            status = statusOf(port);
+
+            // Rule may be unbound while connection is accepted
+            if (dest == 0 || status == null || !listeners.containsKey(port)) {
+                close(connection, port);
+                return;
+            }
+
+            connections.add(connection);
+            status.addAccept();
+
+            // Waiting connections are not read, one that went away is found out when it would be paired
+            ArrayDeque<SocketChannel> peers = waiting.get(dest);
+            while ((peer = (peers == null) ? null : peers.pollFirst()) != null) {
+                pending = probe(peer);
+                if (pending != null) {
+                    break;
+                }
+
+                log.log(Level.FINE, "Waiting connection on port " + dest + " is gone.", dest);
+                connections.remove(peer);
+                close(peer, dest);
+            }
+
+            if (peer == null) {
+                waiting.computeIfAbsent(port, p -> new ArrayDeque<>()).addLast(connection);
+                log.log(Level.FINE, "Connection on port " + port + " waits for a pair.", port);
+                return;
+            }
+
+            status.setLastTimeConnected(LocalDateTime.now());
+            status.setConnected(true);
+            openPairs.merge(status, 1, Integer::sum);
+
+            pair = new Pair(status, pool.getOptions(port).isRaw(), captures.get(port));
+            // Rule status counts bytes read from its first port as sent, the other direction as received
+            first = statuses.containsKey(port);
+        }
+
+        log.log(Level.INFO, "Connection between ports " + port + " " + dest + " established.", port);
+
+        SocketChannel paired = peer;
+        ByteBuffer received = pending;
+        threads.execute(() -> copy(pair, port, dest, connection, paired, first, null));
+        threads.execute(() -> copy(pair, dest, port, paired, connection, !first, received));
+    }
+
+    /**
+     * Reads what a waiting connection has sent without blocking, the only way to tell a connection
+     * closed by its client while it waited.
+     *
+     * @return bytes read, flipped and possibly empty, null if connection is closed or reset
+     */
+    private static ByteBuffer probe(SocketChannel connection) {
+        ByteBuffer probe = ByteBuffer.allocate(1);
+        try {
+            connection.configureBlocking(false);
+            int read = connection.read(probe);
+            connection.configureBlocking(true);
+
+            if (read < 0) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        probe.flip();
+        return probe;
+    }
+
+    /**
+     * @param pending data read from source before the loop started, null if there is none
+     */
+    private void copy(Pair pair, int port, int dest, SocketChannel source, SocketChannel destination,
+                      boolean sent, ByteBuffer pending) {
+        // Raw pairs read into native memory, sockets then take it without a copy from the heap. Copy
+        // threads end with their connection, so buffers bypass thread caches of the pool
+        ByteBuffer buffer = pair.raw ? BufferPool.shared().acquireShared(Session.RAW_READ_SIZE) :
+                ByteBuffer.allocate(bufferSize);
+        IManageableStatus status = pair.status;
+        CaptureRing capture = pair.capture;
+        if (pending != null) {
+            buffer.put(pending);
+        }
+
+        try {
+            // Pending data goes first, even if source has closed after sending it
+            while (buffer.position() > 0 || source.read(buffer) >= 0) {
+                buffer.flip();
+                int bytes = buffer.remaining();
+
+                if (capture != null) {
+                    capture.write(port, dest, buffer);
+                }
+
+                while (buffer.hasRemaining()) {
+                    destination.write(buffer);
+                }
+                buffer.clear();
+
+                if (sent) {
+                    status.addSent(bytes);
+                } else {
+                    status.addRecv(bytes);
+                }
+            }
+        } catch (IOException e) {
+            // Copy loop of the other direction has closed the pair, or connection is reset
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Copy from port " + port + " ended: " + e.getMessage(), port);
+            }
+        }
+
+        if (pair.raw) {
+            BufferPool.shared().releaseShared(buffer);
+        }
+
+        // While draining the other direction may still be writing, so only its output is shut down
+        // and the pair is closed by the last loop
+        int running = pair.running.decrementAndGet();
+        if (running > 0 && drainDeadline != 0) {
+            try {
+                destination.shutdownOutput();
+            } catch (IOException e) {
+                close(destination, port);
+            }
+            return;
+        }
+
+        // Both loops end up here, the second one finds the pair closed already
+        if (connections.remove(source)) {
+            log.log(Level.INFO, "Connection lost for port " + port + ".", port);
+        }
+        connections.remove(destination);
+        close(source, port);
+        close(destination, port);
+
+        // Loop that ends last counts the pair out, rule stays connected while it has other pairs
+        if (running == 0) {
+            pairClosed(status);
+        }
+    }
+
+    private synchronized void pairClosed(IManageableStatus status) {
+        if (openPairs.merge(status, -1, Integer::sum) <= 0) {
+            openPairs.remove(status);
+            status.setConnected(false);
+        }
+    }
+
+    private IManageableStatus statusOf(int port) {
+        IManageableStatus status = statuses.get(port);
+        return (status != null) ? status : statuses.get(pool.getRule(port));
+    }
+
+    @Override
+    public void applyRules(Map<Integer, Integer> rules) {
+        applyRules(rules, Collections.<Integer, RuleOptions>emptyMap());
+    }
+
+    /**
+     * Brings served rules to the given set. Removed rules are unbound and their connections closed
+     * before new rules are bound.
+     */
+    @Override
+    public synchronized void applyRules(Map<Integer, Integer> rules, Map<Integer, RuleOptions> options) {
+        if (!(pool instanceof ManageablePortPool)) {
+            throw new UnsupportedOperationException("Rules of a read only pool can not be changed.");
+        }
+
+        RuleChanges changes = RuleChanges.between(pool.getRules(), new LinkedHashMap<>(rules));
+
+        for (int port : changes.getRemoved()) {
+            unbindRule(port);
+        }
+
+        for (Map.Entry<Integer, Integer> rule : changes.getAdded().entrySet()) {
+            bindRule(rule.getKey(), rule.getValue(), options.getOrDefault(rule.getKey(), RuleOptions.DEFAULT));
+        }
+
+        log.log(Level.INFO, "Rules applied: " + changes + ".", -1);
+    }
+
+    private void bindRule(int portA, int portB, RuleOptions options) {
+        try {
+            ((ManageablePortPool) pool).addRule(portA, portB, options);
+        } catch (InvalidParameterException e) {
+            log.log(Level.WARNING, "Unable to add rule " + portA + "=" + portB + ": " + e.getMessage(), portA);
+            return;
+        }
+
+        statuses.put(portA, new Status(new AbstractMap.SimpleImmutableEntry<>(portA, portB)));
+        captures.open(portA, portB, options);
+
+        // Server that is not running yet binds pool rules on start
+        if (threads != null) {
+            listen(portA, options);
+            listen(portB, options);
+        }
+    }
+
+    private void unbindRule(int port) {
+        int dest = pool.getRule(port);
+        if (dest == 0) {
+            return;
+        }
+
+        for (int side : new int[]{port, dest}) {
+            ServerSocketChannel listener = listeners.remove(side);
+            if (listener != null) {
+                close(listener, side);
+            }
+            waiting.remove(side);
+        }
+
+        // Closing a connection ends copy loops of its pair
+        List<SocketChannel> closed = new ArrayList<>();
+        for (SocketChannel connection : connections) {
+            int local = connection.socket().getLocalPort();
+            if (local == port || local == dest) {
+                closed.add(connection);
+            }
+        }
+        for (SocketChannel connection : closed) {
+            connections.remove(connection);
+            close(connection, port);
+        }
+
+        statuses.remove(port);
+        statuses.remove(dest);
+        captures.close(port, dest);
+        ((ManageablePortPool) pool).deleteRule(port);
+    }
+
+    private void close(Channel channel, int port) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to close channel: " + e.getMessage(), port);
+        }
+    }
+
+    public IStatus getStatus(int port) {
+        return statuses.get(port);
+    }
+
+    @Override
+    public List<IStatus> getStatuses() {
+        return new ArrayList<>(statuses.values());
+    }
+
+    /**
+     * @return no loops, every connection has threads of its own
+     */
+    @Override
+    public List<LoopStats> getLoopStats() {
+        return Collections.emptyList();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -1,9 +1,19 @@
 package com.server;
 
+import com.server.portpool.RuleOptions;
 import com.server.status.IStatus;
 
+import java.util.List;
+import java.util.Map;
+
 public interface IServer {
     void start();
     void shutdown();
+    void drain(long timeoutMillis);
+    boolean awaitStarted(long timeoutMillis) throws InterruptedException;
     IStatus getStatus(int port);
+    List<IStatus> getStatuses();
+    List<LoopStats> getLoopStats();
+    void applyRules(Map<Integer, Integer> rules);
+    void applyRules(Map<Integer, Integer> rules, Map<Integer, RuleOptions> options);
 }
@@ -0,0 +1,54 @@
+package com.server;
+
+/**
+ * Counters of one selector loop. Fields are written by the loop thread only, so plain volatile fields
+ * are enough: other threads read them without locks and the loop never waits for a reader.
+ */
+public final class LoopStats {
+    private volatile long selects;
+    private volatile long events;
+    private volatile long tasks;
+    private volatile int timeouts;
+
+    // Single writer, increments of volatile fields are not racing with anything
+    void selected(int readyKeys) {
+        selects++;
+        events += readyKeys;
+    }
+
+    void ranTasks(int count) {
+        tasks += count;
+    }
+
+    void scheduled(int count) {
+        timeouts = count;
+    }
+
+    /**
+     * @return number of selects done by the loop
+     */
+    public long getSelects() {
+        return selects;
+    }
+
+    /**
+     * @return number of ready keys handled by the loop
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return number of tasks of other threads run by the loop, e.g. rule changes
+     */
+    public long getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return number of timeouts scheduled on the loop timing wheel
+     */
+    public int getTimeouts() {
+        return timeouts;
+    }
+}
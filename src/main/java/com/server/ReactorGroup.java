@@ -0,0 +1,388 @@
+package com.server;
+
+import com.server.buffer.BufferPool;
+import com.server.log.TunnelLog;
+import com.server.pairing.PairingStrategy;
+import com.server.portpool.BasicPortPool;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import com.server.portpool.RuleChanges;
+import com.server.portpool.RuleOptions;
+import com.server.status.IStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * Multi-reactor server. Rules of the pool are sharded across several {@link Server} event loops,
+ * each running on its own thread. Both ports of a rule always belong to the same loop, so forwarding
+ * inside a pair never crosses threads and needs no locking.
+ *
+ * Rules can be changed while loops run. Every change is run by the loop owning the rule, new rules go
+ * to the loop with the fewest rules.
+ *
+ * Ports of rules with SO_REUSEPORT are bound by every loop. Kernel spreads new connections over the
+ * loops, so a reconnect storm is accepted on all cores, and each connection is handed over to the loop
+ * owning its rule.
+ */
+public class ReactorGroup implements Runnable, IServer {
+
+    private static final TunnelLog log = TunnelLog.getLog(ReactorGroup.class);
+    private static final long STOP_TIMEOUT = 5000;
+    private int bufferSize;
+    private long timeout;
+    private int threads;
+
+    // Event loops and the loop owning each port
+    private List<Server> reactors = new ArrayList<>();
+    private Map<Integer, Server> owners = new ConcurrentHashMap<>();
+    private Map<Server, Integer> ruleCounts = new HashMap<>();
+
+    // Rules currently served, changed under the group lock
+    private final Map<Integer, Integer> rules = new LinkedHashMap<>();
+    private final Map<Integer, RuleOptions> options = new HashMap<>();
+    private List<Thread> loops = new ArrayList<>();
+
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public void init(int bufferSize, long timeout, BasicPortPool pool) {
+        init(bufferSize, timeout, pool, defaultThreads());
+    }
+
+    public void init(int bufferSize, long timeout, BasicPortPool pool, int threads) {
+        assert (threads > 0);
+
+        this.bufferSize = bufferSize;
+        this.timeout = timeout;
+
+        Map<Integer, Integer> rules = pool.getRules();
+        synchronized (this) {
+            this.rules.clear();
+            this.rules.putAll(rules);
+
+            this.options.clear();
+            for (int port : rules.keySet()) {
+                this.options.put(port, pool.getOptions(port));
+            }
+        }
+
+        // Every requested loop is started even if initial rules are fewer: rules added at runtime go
+        // to the least loaded loop, and loops without rules still accept for rules with SO_REUSEPORT
+        this.threads = threads;
+
+        List<ManageablePortPool> shards = new ArrayList<>();
+        for (int i = 0; i < this.threads; i++) {
+            shards.add(new PortPool());
+        }
+
+        // Assign rules round robin, both ports of a pair go to the same shard
+        int next = 0;
+        for (Map.Entry<Integer, Integer> entry : rules.entrySet()) {
+            shards.get(next).addRule(entry.getKey(), entry.getValue(), pool.getOptions(entry.getKey()));
+            next = (next + 1) % this.threads;
+        }
+
+        reactors = new ArrayList<>();
+        owners = new ConcurrentHashMap<>();
+        ruleCounts = new HashMap<>();
+        for (ManageablePortPool shard : shards) {
+            Server reactor = new Server();
+            reactor.init(bufferSize, timeout, shard);
+            reactor.disableLeakReport();
+            reactors.add(reactor);
+            ruleCounts.put(reactor, shard.getRules().size());
+
+            for (int port : shard.getPorts()) {
+                owners.put(port, reactor);
+            }
+        }
+
+        // Loops bind acceptors once they start
+        for (Map.Entry<Integer, Integer> entry : rules.entrySet()) {
+            shareAccepts(entry.getKey(), entry.getValue(), pool.getOptions(entry.getKey()));
+        }
+    }
+
+    private List<Future<?>> shareAccepts(int port, int peer, RuleOptions ruleOptions) {
+        List<Future<?>> futures = new ArrayList<>();
+        if (!ruleOptions.isReusePort()) {
+            return futures;
+        }
+
+        Server owner = owners.get(port);
+        for (Server reactor : reactors) {
+            if (reactor != owner) {
+                futures.add(reactor.addAcceptor(port, ruleOptions, owner));
+                futures.add(reactor.addAcceptor(peer, ruleOptions, owner));
+            }
+        }
+
+        return futures;
+    }
+
+    private List<Future<?>> unshareAccepts(int port, int peer, RuleOptions ruleOptions, Server owner) {
+        List<Future<?>> futures = new ArrayList<>();
+        if (ruleOptions == null || !ruleOptions.isReusePort()) {
+            return futures;
+        }
+
+        for (Server reactor : reactors) {
+            if (reactor != owner) {
+                futures.add(reactor.removeAcceptor(port));
+                futures.add(reactor.removeAcceptor(peer));
+            }
+        }
+
+        return futures;
+    }
+
+    public void enableBackpressure(int lowWatermark, int highWatermark) {
+        for (Server reactor : reactors) {
+            reactor.enableBackpressure(lowWatermark, highWatermark);
+        }
+    }
+
+    public void enableMultiConnection(PairingStrategy pairing) {
+        for (Server reactor : reactors) {
+            reactor.enableMultiConnection(pairing);
+        }
+    }
+
+    public void enableIdleTimeout(long idleTimeout) {
+        for (Server reactor : reactors) {
+            reactor.enableIdleTimeout(idleTimeout);
+        }
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    // Rules owned by every loop, in loop order
+    synchronized List<Integer> getRuleCounts() {
+        List<Integer> counts = new ArrayList<>();
+        for (Server reactor : reactors) {
+            counts.add(ruleCounts.get(reactor));
+        }
+
+        return counts;
+    }
+
+    @Override
+    public void start() {
+        run();
+    }
+
+    @Override
+    public void run() {
+        loops = new ArrayList<>();
+        for (int i = 0; i < reactors.size(); i++) {
+            Thread loop = new Thread(reactors.get(i), "reactor-" + i);
+            loops.add(loop);
+            loop.start();
+        }
+
+        log.log(Level.INFO, () -> "Started " + loops.size() + " reactor threads.", -1);
+
+        try {
+            for (Thread loop : loops) {
+                loop.join();
+            }
+        } catch (InterruptedException e) {
+            // Interrupting a loop wakes up its selector, the loop then stops itself
+            for (Thread loop : loops) {
+                loop.interrupt();
+            }
+
+            awaitLoops();
+            Thread.currentThread().interrupt();
+        }
+
+        reportLeaks();
+    }
+
+    /**
+     * Loops share the buffer pool, a buffer is known to be leaked only once no loop can release it.
+     */
+    private void reportLeaks() {
+        for (Thread loop : loops) {
+            if (loop.isAlive()) {
+                log.log(Level.WARNING, loop.getName() + " is still running, buffers are not checked for leaks.", -1);
+                return;
+            }
+        }
+
+        BufferPool.shared().reportLeaks();
+    }
+
+    private void awaitLoops() {
+        for (Thread loop : loops) {
+            try {
+                loop.join(STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                log.log(Level.WARNING, "Interrupted while waiting for " + loop.getName() + " to stop.", -1);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (Server reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    /**
+     * Every loop drains on its own, the group stops once all loops have stopped.
+     */
+    @Override
+    public void drain(long timeoutMillis) {
+        for (Server reactor : reactors) {
+            reactor.drain(timeoutMillis);
+        }
+    }
+
+    @Override
+    public boolean awaitStarted(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Server reactor : reactors) {
+            if (!reactor.awaitStarted(Math.max(0, deadline - System.currentTimeMillis()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Brings served rules to the given set. Removed and re-pointed rules are unbound first, so their
+     * ports are free by the time new rules are bound, possibly on another loop. Returns once loops
+     * have applied the changes.
+     */
+    @Override
+    public void applyRules(Map<Integer, Integer> target) {
+        applyRules(target, Collections.<Integer, RuleOptions>emptyMap());
+    }
+
+    /**
+     * Same as {@link #applyRules(Map)}, added rules are bound with their socket options. Options of
+     * a rule that stays are not changed.
+     */
+    @Override
+    public synchronized void applyRules(Map<Integer, Integer> target, Map<Integer, RuleOptions> options) {
+        RuleChanges changes = RuleChanges.between(rules, target);
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        List<Future<?>> removals = new ArrayList<>();
+        for (int port : changes.getRemoved()) {
+            int peer = rules.remove(port);
+            Server owner = owners.remove(port);
+            owners.remove(peer);
+
+            if (owner != null) {
+                removals.addAll(unshareAccepts(port, peer, this.options.remove(port), owner));
+                removals.add(owner.deleteRule(port));
+                ruleCounts.merge(owner, -1, Integer::sum);
+            }
+        }
+
+        await(removals);
+
+        List<Future<?>> additions = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> rule : changes.getAdded().entrySet()) {
+            Server owner = leastLoaded();
+            RuleOptions ruleOptions = options.getOrDefault(rule.getKey(), RuleOptions.DEFAULT);
+            additions.add(owner.addRule(rule.getKey(), rule.getValue(), ruleOptions));
+            ruleCounts.merge(owner, 1, Integer::sum);
+
+            rules.put(rule.getKey(), rule.getValue());
+            owners.put(rule.getKey(), owner);
+            owners.put(rule.getValue(), owner);
+
+            this.options.put(rule.getKey(), ruleOptions);
+            additions.addAll(shareAccepts(rule.getKey(), rule.getValue(), ruleOptions));
+        }
+
+        await(additions);
+
+        log.log(Level.INFO, () -> "Rules applied: " + changes + ".", -1);
+    }
+
+    private Server leastLoaded() {
+        Server least = reactors.get(0);
+        for (Server reactor : reactors) {
+            if (ruleCounts.get(reactor) < ruleCounts.get(least)) {
+                least = reactor;
+            }
+        }
+
+        return least;
+    }
+
+    private void await(List<Future<?>> changes) {
+        for (Future<?> change : changes) {
+            try {
+                change.get(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException | CancellationException e) {
+                log.log(Level.WARNING, "Rule change is not applied by its loop: " + e, -1);
+            }
+        }
+    }
+
+    @Override
+    public List<IStatus> getStatuses() {
+        List<IStatus> result = new ArrayList<>();
+        for (Server reactor : reactors) {
+            result.addAll(reactor.getStatuses());
+        }
+
+        return result;
+    }
+
+    @Override
+    public List<LoopStats> getLoopStats() {
+        List<LoopStats> result = new ArrayList<>();
+        for (Server reactor : reactors) {
+            result.addAll(reactor.getLoopStats());
+        }
+
+        return result;
+    }
+
+    @Override
+    public IStatus getStatus(int port) {
+        Server owner = owners.get(port);
+        if (owner == null) {
+            return null;
+        }
+
+        return owner.getStatus(port);
+    }
+}
@@ -0,0 +1,75 @@
+package com.server;
+
+import com.server.capture.CaptureRing;
+import com.server.log.TunnelLog;
+import com.server.portpool.RuleOptions;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Capture rings of rules that ask for one. A ring is stored under both ports of its rule, so forwarding
+ * finds it by the port data was read from. Shared by forwarding engines, a capture that can not be
+ * opened is logged and the rule forwards without it.
+ */
+final class RuleCaptures {
+    private static final TunnelLog log = TunnelLog.getLog(RuleCaptures.class);
+
+    private final Map<Integer, CaptureRing> rings = new ConcurrentHashMap<>();
+
+    void open(int portA, int portB, RuleOptions options) {
+        if (options.getCapture() == null || rings.containsKey(portA)) {
+            return;
+        }
+
+        try {
+            // Small ring still keeps a few reads of full size
+            int maxData = Math.min(CaptureRing.DEFAULT_MAX_DATA, options.getCaptureSize() / 4);
+            CaptureRing ring = CaptureRing.create(Paths.get(options.getCapture()), options.getCaptureSize(), maxData);
+            rings.put(portA, ring);
+            rings.put(portB, ring);
+
+            log.log(Level.INFO, "Traffic of rule " + portA + "=" + portB + " is captured to " +
+                    options.getCapture() + ".", portA);
+        } catch (IOException | IllegalArgumentException e) {
+            log.log(Level.WARNING, "Unable to capture traffic of rule " + portA + "=" + portB + ": " +
+                    e.getMessage(), portA);
+        }
+    }
+
+    /**
+     * @return ring of the rule of port, null when its traffic is not captured
+     */
+    CaptureRing get(int port) {
+        return rings.isEmpty() ? null : rings.get(port);
+    }
+
+    void close(int portA, int portB) {
+        CaptureRing ring = rings.remove(portA);
+        rings.remove(portB);
+
+        if (ring != null) {
+            close(ring, portA);
+        }
+    }
+
+    void closeAll() {
+        for (Map.Entry<Integer, CaptureRing> entry : rings.entrySet()) {
+            // Ring of a rule is met twice, the second time it is gone already
+            if (rings.remove(entry.getKey()) != null && !rings.containsValue(entry.getValue())) {
+                close(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    private static void close(CaptureRing ring, int port) {
+        try {
+            ring.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to close capture of port " + port + ": " + e.getMessage(), port);
+        }
+    }
+}
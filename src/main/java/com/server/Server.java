@@ -1,51 +1,125 @@
 package com.server;
 
+import com.server.buffer.BufferPool;
+import com.server.capture.CaptureRing;
+import com.server.log.PayloadTrace;
+import com.server.log.TunnelLog;
+import com.server.pairing.PairingStrategy;
 import com.server.portpool.BasicPortPool;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.RuleChanges;
+import com.server.portpool.RuleOptions;
 import com.server.session.BasicSession;
 import com.server.session.Session;
 import com.server.status.IManageableStatus;
 import com.server.status.IStatus;
+import com.server.status.LatencyRecorder;
 import com.server.status.Status;
+import com.server.timer.LoopClock;
+import com.server.timer.TimingWheel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.security.InvalidParameterException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class Server implements Runnable, IServer {
 
-    private static final Logger logger = Logger.getLogger(Server.class.getName());
+    private static final TunnelLog log = TunnelLog.getLog(Server.class);
+    private static final int WHEEL_SLOTS = 512;
+    private static final long WHEEL_TICK = 100;
+
+    // Reads of one connection per read event, so a bulk transfer does not starve other connections
+    private static final int MAX_READS = 16;
+
     private int bufferSize;
     private long timeout;
     private BasicPortPool pool;
-    private Selector selector;
-    private ByteBuffer buffer;
+    private volatile Selector selector;
+
+    // Tasks of other threads, e.g. rule changes, run on the loop thread before the next select
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Direct buffers connections read into, shared by event loops through thread local caches
+    private BufferPool bufferPool = BufferPool.shared();
+    private boolean reportsLeaks = true;
 
 
     // Channels storage
     private Map<Integer, ServerSocketChannel> serverSocketChannels = new HashMap<>();
     private Map<Integer, SocketChannel> socketChannels = new HashMap<>();
 
-    // Status storage
-    private Map<Integer, IManageableStatus> statuses = new HashMap<>();
+    // Accept sharding: sockets bound with SO_REUSEPORT to ports of rules owned by other loops. Kernel
+    // spreads new connections over all loops, each connection is handed to the loop owning its rule
+    private Map<Integer, ServerSocketChannel> acceptors = new HashMap<>();
+
+    // Status storage, read by other threads while rules change
+    private Map<Integer, IManageableStatus> statuses = new ConcurrentHashMap<>();
     private Map<Integer, Boolean> connected = new HashMap<>();
 
+    // Traffic capture of rules that ask for it
+    private final RuleCaptures captures = new RuleCaptures();
+
+    // Backpressure: source port stops reading while its peer has more than high watermark bytes queued
+    // and resumes once the peer drains its queue below low watermark
+    private boolean backpressure = false;
+    private int lowWatermark;
+    private int highWatermark;
+
+    // Multi-connection mode: every accepted connection has its own session and is paired 1:1 with
+    // a connection of the opposite port chosen by the pairing strategy
+    private PairingStrategy pairing = null;
+    private Map<Integer, ArrayDeque<BasicSession>> waiting = new HashMap<>();
+    private Map<Integer, Integer> connectionCounts = new HashMap<>();
+    private Set<SocketChannel> connections = new HashSet<>();
+
+    // Expiry on the loop thread: stale data is dropped, idle connections and connections without a pair
+    // are closed. Time is read once per loop iteration, every session has one wheel entry
+    private final LoopClock clock = new LoopClock();
+    private final TimingWheel wheel = new TimingWheel(WHEEL_SLOTS, WHEEL_TICK, clock.millis());
+    private final Map<BasicSession, SessionTimeout> timeouts = new IdentityHashMap<>();
+    private long idleTimeout = 0;
+
+    // Counters of this loop, read by metrics scrapes
+    private final LoopStats loopStats = new LoopStats();
+
+    // Graceful stop: nothing is accepted or read any more, loop ends once queued data is written or
+    // deadline passes. Deadline is 0 while the loop is not draining
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile boolean startFailed = false;
+    private long drainDeadline = 0;
+
+    private class SessionTimeout extends TimingWheel.Timeout {
+        private final BasicSession session;
+
+        // Since when connection of the session has no pair, 0 while it has one
+        private long peerlessSince = 0;
+
+        SessionTimeout(BasicSession session) {
+            this.session = session;
+        }
 
-    private void log(Level level, String message, int port) {
-        logger.log(level, "{0}", new Object[]{message, port});
+        @Override
+        protected void expire(long now) {
+            checkSession(this, now);
+        }
     }
 
     private void initSelector() {
         try {
             selector = Selector.open();
         } catch (IOException e) {
-//            logger.log(Level.SEVERE, "Unable to open selector: " + e.getMessage());
-//            log(Level.SEVERE, "Unable to open selector: " + e.getMessage(), -1);
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to open selector: " + e.getMessage(), -1});
+            log.log(Level.SEVERE, "Unable to open selector: " + e.getMessage(), -1);
         }
     }
 
@@ -55,155 +129,393 @@ public class Server implements Runnable, IServer {
     }
 
     public void shutdown() {
+        if (selector == null) {
+            return;
+        }
+
         try {
             selector.close();
         } catch (IOException e) {
-//            logger.log(Level.SEVERE, "Unable to close selector: " + e.getMessage());
-//            log(Level.SEVERE, "Unable to close selector: " + e.getMessage(), -1);
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to close selector: " + e.getMessage(), -1});
+            log.log(Level.SEVERE, "Unable to close selector: " + e.getMessage(), -1);
         }
     }
 
-    private void clearBuffer() {
-        buffer.clear();
-        buffer.put(new byte[bufferSize]);
-        buffer.clear();
-    }
-
     public void init(int bufferSize, long timeout, BasicPortPool pool) {
         this.bufferSize = bufferSize;
         this.timeout = timeout;
         this.pool = pool;
-        this.buffer = ByteBuffer.allocate(bufferSize);
         serverSocketChannels = new HashMap<>();
         socketChannels = new HashMap<>();
     }
 
+    /**
+     * Forwards without losses. Source stops being read once its peer has highWatermark bytes queued
+     * and is read again when the queue is down to lowWatermark bytes.
+     */
+    public void enableBackpressure(int lowWatermark, int highWatermark) {
+        assert (lowWatermark >= 0 && lowWatermark < highWatermark);
+
+        this.backpressure = true;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    public void enableMultiConnection(PairingStrategy pairing) {
+        this.pairing = pairing;
+    }
+
+    /**
+     * Loop of a group leaves reporting of buffers that were never released to the group.
+     */
+    void disableLeakReport() {
+        this.reportsLeaks = false;
+    }
+
+    /**
+     * Closes connections that have no traffic, or no pair, for idleTimeout milliseconds.
+     */
+    public void enableIdleTimeout(long idleTimeout) {
+        assert (idleTimeout > 0);
+        this.idleTimeout = idleTimeout;
+    }
+
+    boolean isMultiConnectionEnabled() {
+        return pairing != null;
+    }
+
     public long getTimeout() {
         return timeout;
     }
 
+    boolean isBackpressureEnabled() {
+        return backpressure;
+    }
+
+    private BasicSession createSession(int port) {
+        BasicSession session = new Session();
+        session.setBufferPool(bufferPool);
+        session.init(bufferSize, timeout, port);
+        // Data can only be kept without losses when the source is throttled
+        session.setLossless(backpressure);
+        // Raw pairs are lossless on their own, their reads are throttled by a single queued buffer
+        boolean raw = pool.getOptions(port).isRaw();
+        session.setRaw(raw);
+        // Latency of data delivered to the port is recorded in the status of its rule, raw pairs skip it
+        session.setLatencyRecorder(raw ? null : statusOf(port));
+        session.setClock(clock);
+
+        SessionTimeout timeout = new SessionTimeout(session);
+        timeouts.put(session, timeout);
+        scheduleCheck(timeout, clock.millis());
+        return session;
+    }
+
+    private void releaseSession(BasicSession session) {
+        SessionTimeout timeout = timeouts.remove(session);
+        if (timeout != null) {
+            wheel.cancel(timeout);
+        }
+
+        session.release();
+    }
+
+    private SocketChannel connectionOf(BasicSession session) {
+        return (pairing != null) ? session.getChannel() : socketChannels.get(session.getPort());
+    }
+
+    private boolean hasPair(BasicSession session) {
+        return (pairing != null) ? session.getPeer() != null : socketChannels.containsKey(pool.getRule(session.getPort()));
+    }
+
+    private void checkSession(SessionTimeout timeout, long now) {
+        BasicSession session = timeout.session;
+
+        // Data nobody took in time is dropped, lossless sessions keep theirs
+        if (!backpressure) {
+            session.dropIfExpired();
+            updateStatusDrops(session);
+            resumePeerOf(selector, session);
+        }
+
+        SocketChannel connection = connectionOf(session);
+        if (idleTimeout > 0 && connection != null) {
+            if (hasPair(session)) {
+                timeout.peerlessSince = 0;
+            } else if (timeout.peerlessSince == 0) {
+                timeout.peerlessSince = now;
+            }
+
+            boolean idle = now - session.getLastActivity() >= idleTimeout;
+            boolean unpaired = timeout.peerlessSince != 0 && now - timeout.peerlessSince >= idleTimeout;
+
+            if (idle || unpaired) {
+                log.log(Level.INFO, () -> "Closing " + (idle ? "idle" : "unpaired") + " connection on port " +
+                        session.getPort() + ".", session.getPort());
+                closeConnection(session, connection);
+                return;
+            }
+        }
+
+        scheduleCheck(timeout, now);
+    }
+
+    private void scheduleCheck(SessionTimeout timeout, long now) {
+        BasicSession session = timeout.session;
+        long deadline = Long.MAX_VALUE;
+
+        // Stale data is looked for once per data timeout, so it lives at most two timeouts
+        if (!backpressure) {
+            deadline = now + this.timeout;
+        }
+
+        if (idleTimeout > 0 && connectionOf(session) != null) {
+            deadline = Math.min(deadline, session.getLastActivity() + idleTimeout);
+
+            if (timeout.peerlessSince != 0) {
+                deadline = Math.min(deadline, timeout.peerlessSince + idleTimeout);
+            }
+        }
+
+        // Nothing can expire until session gets a connection
+        if (deadline != Long.MAX_VALUE) {
+            wheel.schedule(timeout, deadline);
+        }
+    }
+
+    // Connection of session got its first chance to expire
+    private void connectionOpened(BasicSession session) {
+        session.touch();
+
+        SessionTimeout timeout = timeouts.get(session);
+        if (timeout != null) {
+            timeout.peerlessSince = 0;
+            scheduleCheck(timeout, clock.millis());
+        }
+    }
+
+    private void closeConnection(BasicSession session, SocketChannel connection) {
+        if (pairing != null) {
+            closePairedConnection(selector, session);
+        } else {
+            handleConnectionLost(selector, connection, session, session.getPort());
+        }
+    }
+
+    /**
+     * A raw session holds at most one read buffer of its peer, like a pipe of that size. Other sessions
+     * hold up to the high watermark when backpressure is on.
+     */
+    private boolean isQueueFull(BasicSession session) {
+        if (session.isRaw()) {
+            return session.hasData();
+        }
+
+        return backpressure && session.getQueuedBytes() >= highWatermark;
+    }
+
+    private boolean isQueueDrained(BasicSession session) {
+        if (session.isRaw()) {
+            return !session.hasData();
+        }
+
+        return backpressure && session.getQueuedBytes() <= lowWatermark;
+    }
+
+    private boolean isPeerQueueFull(Selector selector, int port) {
+        ServerSocketChannel peerServerSocketChannel = serverSocketChannels.get(pool.getRule(port));
+        if (peerServerSocketChannel == null || peerServerSocketChannel.keyFor(selector) == null) {
+            return false;
+        }
+
+        BasicSession peerSession = (BasicSession) peerServerSocketChannel.keyFor(selector).attachment();
+        return isQueueFull(peerSession);
+    }
+
+    private void pauseReading(SelectionKey key, int port) {
+        if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Peer queue is full, reading from port " + port + " paused.", port);
+            }
+        }
+    }
+
+    /**
+     * Resumes the peer that session may have paused, once queue of session is drained enough. Called
+     * whenever the queue shrinks, also when it is dropped together with its connection.
+     */
+    private void resumePeerOf(Selector selector, BasicSession session) {
+        if (!isQueueDrained(session)) {
+            return;
+        }
+
+        if (pairing == null) {
+            resumeReading(selector, pool.getRule(session.getPort()));
+        } else if (session.getPeer() != null) {
+            resumeReading(session.getPeer().getChannel().keyFor(selector), session.getPeer().getPort());
+        }
+    }
+
+    private void resumeReading(Selector selector, int port) {
+        SocketChannel socketChannel = socketChannels.get(port);
+        if (socketChannel == null) {
+            return;
+        }
+
+        resumeReading(socketChannel.keyFor(selector), port);
+    }
+
+    private void resumeReading(SelectionKey key, int port) {
+        // Draining loop takes no more data in
+        if (drainDeadline != 0) {
+            return;
+        }
+
+        if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (log.isLoggable(Level.FINE)) {
+                log.log(Level.FINE, "Peer queue is drained, reading from port " + port + " resumed.", port);
+            }
+        }
+    }
+
     int getBufferSize() {
         return bufferSize;
     }
 
-    void registerChannels(Selector selector) {
+    /**
+     * @return true if every port of the pool is listening
+     */
+    boolean registerChannels(Selector selector) {
         assert (selector.isOpen());
         // TODO: if port busy add logic for skipping data translation
 
+        // Sessions created below record to statuses
+        initializeStatuses();
+
+        boolean bound = true;
         for (int port : pool.getPorts()) {
-            ServerSocketChannel serverSocketChannel;
+            bound &= registerPort(selector, port);
+        }
 
-            try {
-                serverSocketChannel = ServerSocketChannel.open();
-            } catch (IOException e) {
-//                logger.warning("Unable to open server socket on port " + port +
-//                        ". Open method failed with message:\n" + e.getMessage());
-//                log(Level.WARNING, "Unable to open server socket on port " + port +
-//                        ". Open method failed with message:\n" + e.getMessage(), port);
-                logger.log(Level.WARNING, "{0}", new Object[]{"Unable to open server socket on port " + port +
-                        ". Open method failed with message:\n" + e.getMessage(), port});
-                continue;
-            }
+        return bound;
+    }
 
-            try {
-                if (serverSocketChannel != null) {
-                    serverSocketChannel.configureBlocking(false);
-                } else {
-//                    logger.warning("Server socket channel is not opened and cannot be configured.");
-//                    log(Level.WARNING, "Server socket channel is not opened and cannot be configured.", port);
-                    logger.log(Level.WARNING, "{0}", new Object[]{"Server socket channel is not opened and cannot be configured.", port});
-                    continue;
-                }
-            } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode for " +
-//                        "port " + port + ". " + e.getMessage());
-//                log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode for " +
-//                        "port " + port + ". " + e.getMessage(), port);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to configure server socket channel to non-blocking mode for " +
-                        "port " + port + ". " + e.getMessage(), port});
-                continue;
-            }
+    private boolean registerPort(Selector selector, int port) {
+        ServerSocketChannel serverSocketChannel = openListening(port, pool.getOptions(port));
+        if (serverSocketChannel == null) {
+            return false;
+        }
 
-            try {
-                serverSocketChannel.socket().bind(new InetSocketAddress(port));
-            } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Can not bind server socket channel to port " +
-//                        port + ". Port busy. " + e.getMessage());
-//                log(Level.SEVERE, "Can not bind server socket channel to port " +
-//                        port + ". Port busy. " + e.getMessage(), port);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Can not bind server socket channel to port " +
-                        port + ". Port busy. " + e.getMessage(), port});
-                continue;
-            }
+        // Create new session
+        BasicSession session = createSession(port);
 
-            // Create new session
-            BasicSession session = new Session();
-            session.init(bufferSize, timeout, port);
+        try {
+            // Register accept event with generated session
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, session);
+        } catch (ClosedChannelException e) {
+            log.log(Level.SEVERE, "Unable to register ACCEPT event for port " +
+                    port + ". " + e.getMessage(), port);
+            close(serverSocketChannel, port);
+            return false;
+        }
 
-            try {
-                // Register accept event with generated session
-                serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, session);
-            } catch (ClosedChannelException e) {
-//                logger.log(Level.SEVERE, "Unable to register ACCEPT event for port " +
-//                        port + ". " + e.getMessage());
-//                log(Level.SEVERE, "Unable to register ACCEPT event for port " +
-//                        port + ". " + e.getMessage(), port);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to register ACCEPT event for port " +
-                        port + ". " + e.getMessage(), port});
-                continue;
+        // Store registered server socket channels
+        serverSocketChannels.put(port, serverSocketChannel);
+
+        // Store connected status for port
+        connected.put(port, false);
+        return true;
+    }
+
+    /**
+     * Opens non-blocking server socket bound to port.
+     *
+     * @return bound channel, null if it could not be bound
+     */
+    private ServerSocketChannel openListening(int port, RuleOptions options) {
+        ServerSocketChannel serverSocketChannel;
+
+        try {
+            serverSocketChannel = ServerSocketChannel.open();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to open server socket on port " + port +
+                    ". Open method failed with message:\n" + e.getMessage(), port);
+            return null;
+        }
+
+        try {
+            if (serverSocketChannel != null) {
+                serverSocketChannel.configureBlocking(false);
+            } else {
+                log.log(Level.WARNING, "Server socket channel is not opened and cannot be configured.", port);
+                return null;
             }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode for " +
+                    "port " + port + ". " + e.getMessage(), port);
+            close(serverSocketChannel, port);
+            return null;
+        }
 
-            // Store registered server socket channels
-            serverSocketChannels.put(port, serverSocketChannel);
+        SocketOptions.configureListening(serverSocketChannel, options, port);
 
-            // Store connected status for port
-            connected.put(port, false);
+        try {
+            serverSocketChannel.bind(new InetSocketAddress(port), options.getBacklog());
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Can not bind server socket channel to port " +
+                    port + ". Port busy. " + e.getMessage(), port);
+            close(serverSocketChannel, port);
+            return null;
         }
 
-        initializeStatuses();
+        return serverSocketChannel;
     }
 
     private void initializeStatuses() {
         for (Map.Entry<Integer, Integer> entry : pool.getRules().entrySet()) {
             IManageableStatus status = new Status(entry);
             statuses.put(entry.getKey(), status);
+            captures.open(entry.getKey(), entry.getValue(), pool.getOptions(entry.getKey()));
         }
     }
 
-    void deregisterChannels() throws IOException {
+    // Channel that fails to close does not keep the rest open
+    void deregisterChannels() {
         for (Map.Entry<Integer, ServerSocketChannel> entry : serverSocketChannels.entrySet()) {
-            entry.getValue().close();
+            close(entry.getValue(), entry.getKey());
         }
 
         for (Map.Entry<Integer, SocketChannel> entry : socketChannels.entrySet()) {
-            entry.getValue().close();
+            close(entry.getValue(), entry.getKey());
+        }
+
+        for (SocketChannel connection : connections) {
+            close(connection, -1);
         }
+        connections.clear();
+
+        for (Map.Entry<Integer, ServerSocketChannel> entry : acceptors.entrySet()) {
+            close(entry.getValue(), entry.getKey());
+        }
+        acceptors.clear();
     }
 
     private void updateStatusConnection(int port, boolean status) {
         assert connected.containsKey(port);
 
-//        logger.info("Updating status for port " + port);
-//        log(Level.INFO, "Updating status for port " + port, port);
-        logger.log(Level.INFO, "{0}", new Object[]{"Updating status for port " + port, port});
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Updating status for port " + port, port);
+        }
 
         connected.put(port, status);
 
         int dest = pool.getRule(port);
 
-        IManageableStatus currentStatus;
-        if (statuses.containsKey(port)) {
-            currentStatus = statuses.get(port);
-        } else {
-            currentStatus = statuses.get(dest);
-        }
-
+        IManageableStatus currentStatus = statusOf(port);
 
         if (status && connected.get(dest)) {
-//            logger.info("Connection between ports " + port + " " + dest + " established.");
-//            log(Level.INFO, "Connection between ports " + port + " " + dest + " established.", port);
-            logger.log(Level.INFO, "{0}", new Object[]{"Connection between ports " + port + " " + dest + " established.", port});
+            log.log(Level.INFO, () -> "Connection between ports " + port + " " + dest + " established.", port);
             currentStatus.setLastTimeConnected(LocalDateTime.now());
             currentStatus.setConnected(true);
         } else {
@@ -212,15 +524,27 @@ public class Server implements Runnable, IServer {
 
     }
 
+    // Status of a rule is stored under its first port
+    private IManageableStatus statusOf(int port) {
+        IManageableStatus status = statuses.get(port);
+        return (status != null) ? status : statuses.get(pool.getRule(port));
+    }
+
     private void updateStatusBytes(int port, int bytes) {
-        int dest = pool.getRule(port);
+        IManageableStatus status = statuses.get(port);
 
-        if (statuses.containsKey(port)) {
-            IManageableStatus status = statuses.get(port);
-            status.setSent(status.getSent() + bytes);
+        if (status != null) {
+            status.addSent(bytes);
         } else {
-            IManageableStatus status = statuses.get(dest);
-            status.setRecv(status.getRecv() + bytes);
+            statuses.get(pool.getRule(port)).addRecv(bytes);
+        }
+    }
+
+    private void updateStatusDrops(BasicSession session) {
+        long dropped = session.takeDroppedBytes();
+
+        if (dropped > 0) {
+            statusOf(session.getPort()).addDrops(dropped);
         }
     }
 
@@ -232,12 +556,8 @@ public class Server implements Runnable, IServer {
         try {
             socketChannel = serverSocketChannel.accept();
         } catch (IOException e) {
-//            logger.log(Level.SEVERE, "Unable to accept connection for key " +
-//                    key + " with msg: " + e.getMessage());
-//            log(Level.SEVERE, "Unable to accept connection for key " +
-//                    key + " with msg: " + e.getMessage(), -1);
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to accept connection for key " +
-                    key + " with msg: " + e.getMessage(), -1});
+            log.log(Level.SEVERE, "Unable to accept connection for key " +
+                    key + " with msg: " + e.getMessage(), -1);
             return null;
         }
 
@@ -245,43 +565,66 @@ public class Server implements Runnable, IServer {
         try {
             socketChannel.configureBlocking(false);
         } catch (IOException e) {
-//            logger.log(Level.SEVERE, "Unable to configure socket channel to non-blocking mode: "
-//                    + e.getMessage());
-            log(Level.SEVERE, "Unable to configure socket channel to non-blocking mode: "
+            log.log(Level.SEVERE, "Unable to configure socket channel to non-blocking mode: "
                     + e.getMessage(), socketChannel.socket().getLocalPort());
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to configure socket channel to non-blocking mode: "
-                    + e.getMessage(), socketChannel.socket().getLocalPort()});
             return null;
         }
 
-        BasicSession session = (BasicSession) key.attachment();
-//        logger.info("Accepting connection for port " + session.getPort() + ".");
-//        log(Level.INFO, "Accepting connection for port " + session.getPort() + ".", session.getPort());
-        logger.log(Level.INFO, "{0}", new Object[]{"Accepting connection for port " + session.getPort() + ".", session.getPort()});
+        // Connection accepted for a rule of another loop is registered by that loop
+        if (key.attachment() instanceof Server) {
+            handOver((Server) key.attachment(), socketChannel, serverSocketChannel.socket().getLocalPort());
+            return null;
+        }
+
+        return acceptConnection(selector, socketChannel, (BasicSession) key.attachment());
+    }
+
+    private void handOver(Server owner, SocketChannel socketChannel, int port) {
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Connection for port " + port + " is handed over to the loop of its rule.", port);
+        }
+
+        owner.execute(() -> owner.adoptConnection(socketChannel, port));
+    }
+
+    private void adoptConnection(SocketChannel socketChannel, int port) {
+        ServerSocketChannel serverSocketChannel = serverSocketChannels.get(port);
+        SelectionKey key = (serverSocketChannel != null) ? serverSocketChannel.keyFor(selector) : null;
+
+        // Rule may be unbound while connection is on its way
+        if (key == null || !key.isValid()) {
+            log.log(Level.FINE, "Connection for unbound port " + port + " is closed.", port);
+            close(socketChannel, port);
+            return;
+        }
+
+        acceptConnection(selector, socketChannel, (BasicSession) key.attachment());
+    }
+
+    private SelectionKey acceptConnection(Selector selector, SocketChannel socketChannel, BasicSession session) {
+        log.log(Level.INFO, () -> "Accepting connection for port " + session.getPort() + ".", session.getPort());
+        SocketOptions.configureConnection(socketChannel, pool.getOptions(session.getPort()), session.getPort());
+
+        if (pairing != null) {
+            return acceptPairedConnection(selector, socketChannel, session.getPort());
+        }
+
+        // New connection does not read while its peer is not able to take more data
+        int readOps = isPeerQueueFull(selector, session.getPort()) ? 0 : SelectionKey.OP_READ;
 
         // Check if there's data to process
         try {
             if (session.hasData()) {
-                socketChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, session);
-//                logger.info("Socket state for port " + session.getPort() +
-//                        " changed to listening READ | WRITE events (as current session has data to process).");
-//                log(Level.INFO, "Socket state for port " + session.getPort() +
-//                        " changed to listening READ | WRITE events (as current session has data to process).",
-//                        session.getPort());
-                logger.log(Level.INFO, "{0}", new Object[]{"Socket state for port " + session.getPort() +
-                        " changed to listening READ | WRITE events (as current session has data to process).", session.getPort()});
+                socketChannel.register(selector, readOps | SelectionKey.OP_WRITE, session);
+                log.log(Level.FINE, "Socket state for port " + session.getPort() +
+                        " changed to listening READ | WRITE events (as current session has data to process).", session.getPort());
             } else {
-                socketChannel.register(selector, SelectionKey.OP_READ, session);
-//                logger.info("Socket state for port " + session.getPort() + " changed to listening READ event.");
-//                log(Level.INFO, "Socket state for port " + session.getPort() +
-//                        " changed to listening READ event.", session.getPort());
-                logger.log(Level.INFO, "{0}", new Object[]{"Socket state for port " + session.getPort() +
-                        " changed to listening READ event.", session.getPort()});
+                socketChannel.register(selector, readOps, session);
+                log.log(Level.FINE, "Socket state for port " + session.getPort() +
+                        " changed to listening READ event.", session.getPort());
             }
         } catch (ClosedChannelException e) {
-//            logger.log(Level.SEVERE, "Unable to register a read event: " + e.getMessage());
-//            log(Level.SEVERE, "Unable to register a read event: " + e.getMessage(), session.getPort());
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to register a read event: " + e.getMessage(), session.getPort()});
+            log.log(Level.SEVERE, "Unable to register a read event: " + e.getMessage(), session.getPort());
             return null;
         }
 
@@ -291,222 +634,483 @@ public class Server implements Runnable, IServer {
         // TODO: prototype failed to read first byte of message. It's possible that here you have to look for data
 
         updateStatusConnection(session.getPort(), true);
+        statusOf(session.getPort()).addAccept();
+        connectionOpened(session);
 
         return socketChannel.keyFor(selector);
     }
 
 
+    private SelectionKey acceptPairedConnection(Selector selector, SocketChannel socketChannel, int port) {
+        BasicSession session = createSession(port);
+        session.setChannel(socketChannel);
+
+        SelectionKey connectionKey;
+        try {
+            connectionKey = socketChannel.register(selector, SelectionKey.OP_READ, session);
+        } catch (ClosedChannelException e) {
+            log.log(Level.SEVERE, "Unable to register a read event: " + e.getMessage(), port);
+            releaseSession(session);
+            return null;
+        }
+
+        connections.add(socketChannel);
+        connectionCounts.merge(port, 1, Integer::sum);
+        statusOf(port).addAccept();
+        connectionOpened(session);
+
+        ArrayDeque<BasicSession> peers = waiting.get(pool.getRule(port));
+        BasicSession peer = (peers == null) ? null : pairing.pick(session, peers);
+
+        if (peer != null) {
+            pair(selector, session, peer);
+        } else {
+            waiting.computeIfAbsent(port, p -> new ArrayDeque<>()).addLast(session);
+            log.log(Level.FINE, "Connection #" + session.getId() + " on port " + port + " waits for a pair.", port);
+        }
+
+        return connectionKey;
+    }
+
+    private void pair(Selector selector, BasicSession session, BasicSession peer) {
+        session.setPeer(peer);
+        peer.setPeer(session);
+
+        log.log(Level.INFO, () -> "Connection #" + session.getId() + " on port " + session.getPort() +
+                " paired with #" + peer.getId() + " on port " + peer.getPort() + ".", session.getPort());
+
+        // Waiting connection may have read data before it got its pair
+        for (BasicSession side : new BasicSession[]{session, peer}) {
+            SelectionKey sideKey = side.getChannel().keyFor(selector);
+
+            if (side.getReadBuffer().position() > 0) {
+                // Read time of waiting data is unknown, its dwell is counted from pairing
+                int bytes = forward(selector, sideKey, side, side.getPeer(), side.getPeer().getChannel(),
+                        System.nanoTime());
+                updateStatusBytes(side.getPort(), bytes);
+            }
+
+            if (!isQueueFull(side.getPeer())) {
+                resumeReading(sideKey, side.getPort());
+            }
+        }
+
+        updateStatusConnection(session.getPort(), true);
+        updateStatusConnection(peer.getPort(), true);
+    }
+
+    private void closePairedConnection(Selector selector, BasicSession session) {
+        SocketChannel socketChannel = session.getChannel();
+        int port = session.getPort();
+
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to close current connection. " + e.getMessage(), port);
+        }
+
+        connections.remove(socketChannel);
+        connectionCounts.merge(port, -1, Integer::sum);
+
+        ArrayDeque<BasicSession> waitingSessions = waiting.get(port);
+        if (waitingSessions != null) {
+            waitingSessions.remove(session);
+        }
+
+        log.log(Level.INFO, () -> "Connection #" + session.getId() + " on port " + port + " closed.", port);
+
+        BasicSession peer = session.getPeer();
+        session.setPeer(null);
+        releaseSession(session);
+
+        updateStatusConnection(port, connectionCounts.get(port) > 0);
+
+        // Peer gets what is still queued for it and is closed after that. Peer paused by the dropped
+        // queue reads again, so it sees its client going away
+        if (peer != null) {
+            peer.setPeer(null);
+            resumeReading(peer.getChannel().keyFor(selector), peer.getPort());
+
+            if (!peer.hasData()) {
+                closePairedConnection(selector, peer);
+            }
+        }
+    }
+
+    private SelectionKey handlePairedReadEvent(Selector selector, SelectionKey key) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        BasicSession sourceSession = (BasicSession) key.attachment();
+        int source = sourceSession.getPort();
+        ByteBuffer buffer = sourceSession.getReadBuffer();
+
+        int read;
+        try {
+            read = socketChannel.read(buffer);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to read from socket channel.", source);
+            read = -1;
+        }
+        long readAt = readTime(sourceSession);
+        sourceSession.recordRead(read);
+
+        if (read < 0) {
+            closePairedConnection(selector, sourceSession);
+            return null;
+        }
+
+        sourceSession.touch();
+
+        BasicSession peer = sourceSession.getPeer();
+
+        // Data of a connection without pair stays in its read buffer until pair is found
+        if (peer == null) {
+            if (buffer.position() > 0) {
+                pauseReading(key, source);
+            }
+            return key;
+        }
+
+        for (int reads = 1; buffer.position() > 0; reads++) {
+            boolean full = !buffer.hasRemaining();
+            int bytes = forward(selector, key, sourceSession, peer, peer.getChannel(), readAt);
+            updateStatusBytes(source, bytes);
+
+            // Filled buffer means socket may have more, read on while budget allows
+            if (!full || reads == MAX_READS || !isReading(key)) {
+                break;
+            }
+
+            buffer = sourceSession.getReadBuffer();
+            if (readMore(socketChannel, sourceSession, buffer) <= 0) {
+                break;
+            }
+            readAt = readTime(sourceSession);
+        }
+
+        return key;
+    }
+
+    // Raw pairs record no latency, so they do not pay for reading the clock on every read
+    private static long readTime(BasicSession session) {
+        return session.isRaw() ? 0 : System.nanoTime();
+    }
+
+    private static boolean isReading(SelectionKey key) {
+        return key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    /**
+     * Reads once more within the same read event. End of stream and errors are left for the next
+     * select to report, so they are handled in one place.
+     *
+     * @return number of bytes read, 0 when socket is drained or failed
+     */
+    private int readMore(SocketChannel socketChannel, BasicSession session, ByteBuffer buffer) {
+        int read;
+        try {
+            read = socketChannel.read(buffer);
+        } catch (IOException e) {
+            return 0;
+        }
+
+        session.recordRead(read);
+        return read;
+    }
+
+    /**
+     * Passes data of source read buffer to destination connection. Data is written straight to destination
+     * channel if possible, the rest is queued in destination session.
+     *
+     * @param readAt time data was read at, by {@link System#nanoTime()}
+     * @return number of bytes forwarded
+     */
+    private int forward(Selector selector, SelectionKey key, BasicSession sourceSession, BasicSession session,
+                        SocketChannel destChannel, long readAt) {
+        ByteBuffer buffer = sourceSession.getReadBuffer();
+        int source = sourceSession.getPort();
+        int dest = session.getPort();
+        boolean finest = log.isLoggable(Level.FINEST);
+
+        if (finest) {
+            log.log(Level.FINEST, "Reading data for port pair: " + source + " -> " + dest, source);
+        }
+
+        buffer.flip();
+        int bytes = buffer.remaining();
+
+        CaptureRing capture = captures.get(source);
+        if (capture != null) {
+            capture.write(source, dest, buffer);
+        }
+
+        // Payload is dumped for traced rules only, raw pairs are never inspected
+        if (!sourceSession.isRaw() && (PayloadTrace.isEnabled(source) || PayloadTrace.isEnabled(dest))) {
+            log.log(Level.INFO, "Data received: " + PayloadTrace.toHex(buffer), source);
+        }
+
+        // If other side is connected and has nothing queued then write data straight to it
+        if (destChannel != null && !session.hasData()) {
+            try {
+                destChannel.write(buffer);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to write data to socket: " + e.getMessage(), source);
+            }
+        }
+
+        // Whatever was not written waits in the destination session. The filled buffer itself is handed
+        // over, source reads into a fresh buffer from the pool next time
+        if (buffer.hasRemaining()) {
+            session.enqueue(sourceSession.takeReadBuffer(), readAt);
+            updateStatusDrops(session);
+
+            // Stop reading from source until destination drains its queue
+            if (isQueueFull(session)) {
+                pauseReading(key, source);
+            }
+
+            if (destChannel == null) {
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "No destination channel", source);
+                }
+            } else {
+                if (finest) {
+                    log.log(Level.FINEST, "Destination port " + dest + " ready for data.", source);
+                }
+
+                // Keep destination's read interest as it is, it may be paused by backpressure
+                SelectionKey destChannelKey = destChannel.keyFor(selector);
+                if (destChannelKey != null && destChannelKey.isValid()) {
+                    destChannelKey.interestOps(destChannelKey.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    log.log(Level.SEVERE, "Unable to register write event. Destination key is not valid.", source);
+                }
+            }
+        } else {
+            if (finest) {
+                log.log(Level.FINEST, "Data sent straight to port " + dest + ": " + bytes + " bytes.", source);
+            }
+
+            // Read buffer is drained, make it ready for the next read
+            buffer.clear();
+
+            LatencyRecorder latency = session.getLatencyRecorder();
+            if (latency != null) {
+                latency.recordDwell(System.nanoTime() - readAt);
+            }
+        }
+
+        return bytes;
+    }
+
     private SelectionKey handleReadEvent(Selector selector, SelectionKey key) {
+        if (pairing != null) {
+            return handlePairedReadEvent(selector, key);
+        }
+
         SocketChannel socketChannel = (SocketChannel) key.channel();
 
         // Get source and destination ports
         int source = socketChannel.socket().getLocalPort();
         int dest = pool.getRule(source);
 
-//        logger.info("Socket on port " + source + " ready for incoming data.");
-//        log(Level.INFO, "Socket on port " + source + " ready for incoming data.", source);
-        logger.log(Level.INFO, "{0}", new Object[]{"Socket on port " + source + " ready for incoming data.", source});
+        // Data is read into the buffer owned by the source connection
+        BasicSession sourceSession = (BasicSession) key.attachment();
+        ByteBuffer buffer = sourceSession.getReadBuffer();
 
+        if (log.isLoggable(Level.FINEST)) {
+            log.log(Level.FINEST, "Socket on port " + source + " ready for incoming data.", source);
+        }
+
+        int read = 0;
         try {
-            socketChannel.read(buffer);
+            read = socketChannel.read(buffer);
         } catch (IOException e) {
-//            logger.log(Level.SEVERE, "Unable to read from socket channel.");
-//            log(Level.SEVERE, "Unable to read from socket channel.", source);
-            logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to read from socket channel.", source});
+            log.log(Level.SEVERE, "Unable to read from socket channel.", source);
         }
+        long readAt = readTime(sourceSession);
+        sourceSession.recordRead(read);
 
         if (buffer.position() > 0) {
             assert (serverSocketChannels.containsKey(source));
+            sourceSession.touch();
 
             // Get destination channel session
             ServerSocketChannel destServerSocketChannel = serverSocketChannels.get(dest);
             SelectionKey destKey = destServerSocketChannel.keyFor(selector);
             BasicSession session = (BasicSession) destKey.attachment();
+            SocketChannel destChannel = socketChannels.get(dest);
 
-//            logger.info("Reading data for port pair: " + source + " -> " + dest);
-//            log(Level.INFO, "Reading data for port pair: " + source + " -> " + dest, source);
-            logger.log(Level.INFO, "{0}", new Object[]{"Reading data for port pair: " + source + " -> " + dest, source});
-
-            // Store data into target session
-            session.writeWithFlip(buffer);
+            for (int reads = 1; ; reads++) {
+                boolean full = !buffer.hasRemaining();
+                int bytes = forward(selector, key, sourceSession, session, destChannel, readAt);
 
-//            logger.info("Data received: " + session.getBufferAsString());
-//            log(Level.INFO, "Data received: " + session.getBufferAsString(), source);
-            logger.log(Level.INFO, "{0}", new Object[]{"Data received: " + session.getBufferAsString(), source});
-
-            // If other side is ready to read then propose data for it
-            System.out.println("now I want to propose my ("+ source + ") data to destination(" + dest + ").");
-            System.out.println("socket channels has to contain key : " + socketChannels.containsKey(dest));
-
-            if (socketChannels.containsKey(dest)) {
-                SocketChannel destChannel = socketChannels.get(dest);
-
-                if (destChannel == null) {
-//                    logger.info("No destination channel");
-//                    log(Level.INFO, "No destination channel", source);
-                    logger.log(Level.INFO, "{0}", new Object[]{"No destination channel", source});
-                    return key;
+                // Update number of bytes transferred
+                if (destChannel != null) {
+                    updateStatusBytes(source, bytes);
                 }
 
-//                logger.info("Destination port " + destChannel.socket().getLocalPort() + " ready for data.");
-//                log(Level.INFO, "Destination port " + destChannel.socket().getLocalPort() +
-//                        " ready for data.", source);
-                logger.log(Level.INFO, "{0}", new Object[]{"Destination port " + destChannel.socket().getLocalPort() +
-                        " ready for data.", source});
-
-                try {
-                    destChannel.register(selector, SelectionKey.OP_WRITE, destKey.attachment());
-                } catch (ClosedChannelException e) {
-//                    logger.log(Level.SEVERE, "Unable to register write event. " + e.getMessage());
-//                    log(Level.SEVERE, "Unable to register write event. " + e.getMessage(), source);
-                    logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to register write event. " + e.getMessage(), source});
+                // Filled buffer means socket may have more, read on while budget allows
+                if (!full || reads == MAX_READS || !isReading(key)) {
+                    break;
                 }
 
-                // Update number of bytes transferred
-                updateStatusBytes(source, buffer.position());
+                buffer = sourceSession.getReadBuffer();
+                read = readMore(socketChannel, sourceSession, buffer);
+                if (read <= 0) {
+                    break;
+                }
+                readAt = readTime(sourceSession);
             }
         } else {
             // No data received. Connection lost(?). Set key to listen accept event
-//            logger.info("Connection lost for port " + source + ". Channel will be listening to accept event");
-//            log(Level.INFO, "Connection lost for port " + source +
-//                    ". Channel will be listening to accept event", source);
-            logger.log(Level.INFO, "{0}", new Object[]{"Connection lost for port " + source +
-                    ". Channel will be listening to accept event", source});
+            handleConnectionLost(selector, socketChannel, sourceSession, source);
+            return null;
+        }
 
-            // Reset socket storage
-            assert (serverSocketChannels.containsKey(source));
-            ServerSocketChannel serverSocketChannel = serverSocketChannels.get(source);
+        return socketChannel.keyFor(selector);
+    }
 
-//            socketChannels.remove(dest); //???
-            // Close current connection
-            try {
-                socketChannel.socket().close();
-            } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Unable to close current connection. " + e.getMessage());
-//                log(Level.SEVERE,"Unable to close current connection. " + e.getMessage(), source);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to close current connection. " + e.getMessage(), source});
-            }
+    private void handleConnectionLost(Selector selector, SocketChannel socketChannel, BasicSession sourceSession,
+                                      int source) {
+        log.log(Level.INFO, () -> "Connection lost for port " + source +
+                ". Channel will be listening to accept event", source);
 
-            // Reset server socket session
-            try {
-                serverSocketChannel.configureBlocking(false);
-            } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode " +
-//                        e.getMessage());
-//                log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode " +
-//                        e.getMessage(), source);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to configure server socket channel to non-blocking mode " +
-                        e.getMessage(), source});
-            }
+        // Reset socket storage
+        assert (serverSocketChannels.containsKey(source));
+        ServerSocketChannel serverSocketChannel = serverSocketChannels.get(source);
 
-            BasicSession session = new Session();
-            session.init(bufferSize, timeout, source);
+        socketChannels.remove(source);
 
-            // Reset channel to wait for new connections
-            try {
-                serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, session);
-            } catch (ClosedChannelException e) {
-//                logger.log(Level.SEVERE, "Unable to re-register server socket channel on connection lost: " +
-//                        e.getMessage());
-//                log(Level.SEVERE, "Unable to re-register server socket channel on connection lost: " +
-//                        e.getMessage(), source);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to re-register server socket channel on connection lost: " +
-                        e.getMessage(), source});
-            }
+        // Close current connection
+        try {
+            socketChannel.socket().close();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to close current connection. " + e.getMessage(), source);
+        }
 
-            // Clear buffer as the data is no longer used
-            clearBuffer();
+        // Reset server socket session
+        try {
+            serverSocketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to configure server socket channel to non-blocking mode " +
+                    e.getMessage(), source);
+        }
 
-            // Update status on connection lost
-            updateStatusConnection(source, false);
+        // Data queued for the lost connection has no receiver anymore, peer paused by it reads again
+        releaseSession(sourceSession);
+        BasicSession session = createSession(source);
+        resumePeerOf(selector, session);
 
-            return null;
+        // Reset channel to wait for new connections
+        try {
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, session);
+        } catch (ClosedChannelException e) {
+            log.log(Level.SEVERE, "Unable to re-register server socket channel on connection lost: " +
+                    e.getMessage(), source);
         }
 
-        // Clear buffer as the data is no longer used
-        clearBuffer();
-
-        return socketChannel.keyFor(selector);
+        // Update status on connection lost
+        updateStatusConnection(source, false);
     }
 
 
     SelectionKey handleWriteEvent(Selector selector, SelectionKey key) {
-//        logger.info("Key is writable.");
-
         SocketChannel socketChannel = (SocketChannel) key.channel();
         BasicSession session = (BasicSession) key.attachment();
 
         if (session.hasData()) {
-//            logger.info("Sending data to socket on port "+ socketChannel.socket().getLocalPort()
-//                    + ": " + session.getBufferAsString());
-//            log(Level.INFO, "Sending data to socket on port "+ socketChannel.socket().getLocalPort()
-//                    + ": " + session.getBufferAsString(), socketChannel.socket().getLocalPort());
-            logger.log(Level.INFO, "{0}", new Object[]{"Sending data to socket on port "+ socketChannel.socket().getLocalPort()
-                    + ": " + session.getBufferAsString(), socketChannel.socket().getLocalPort()});
+            int port = session.getPort();
 
-            // Dump data into internal server buffer
-            session.flashTo(buffer);
+            // Payload is dumped for traced rules only
+            if (!session.isRaw() && PayloadTrace.isEnabled(port)) {
+                log.log(Level.INFO, "Sending data to socket on port " + port + ": " + session.getBufferAsString(), port);
+            }
 
             try {
-                // Write buffer to socket
-                ByteBuffer bf = (ByteBuffer) buffer.flip();
-                socketChannel.write(bf);
+                // Write session data straight to socket
+                int written = session.flushTo(socketChannel);
+                updateStatusDrops(session);
 
-//                logger.info("Data sent.");
-//                log(Level.INFO, "Data sent.", socketChannel.socket().getLocalPort());
-                logger.log(Level.INFO, "{0}", new Object[]{"Data sent.", socketChannel.socket().getLocalPort()});
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Data sent: " + written + " bytes.", port);
+                }
             } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Unable to write data to socket: " + e.getMessage());
-//                log(Level.SEVERE, "Unable to write data to socket: " + e.getMessage(),
-//                        socketChannel.socket().getLocalPort());
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to write data to socket: " + e.getMessage(),
-                        socketChannel.socket().getLocalPort()});
+                log.log(Level.SEVERE, "Unable to write data to socket: " + e.getMessage(), port);
                 return key;
             }
 
         }
 
-        // Clear buffer as the data is no longer used
-        clearBuffer();
+        // Let the peer read again once queue is drained enough
+        resumePeerOf(selector, session);
 
-        // Cancel write event and wait for more data
-        key.interestOps(SelectionKey.OP_READ);
+        // Cancel write event and wait for more data once everything is written
+        if (!session.hasData()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Connection that lost its pair is closed once it got everything queued for it
+            if (pairing != null && session.getPeer() == null) {
+                closePairedConnection(selector, session);
+                return null;
+            }
+        }
 
         return socketChannel.keyFor(selector);
     }
 
     public void run() {
         initSelector();
-        registerChannels(selector);
+        if (selector == null) {
+            startFailed = true;
+            started.countDown();
+            return;
+        }
 
-//        logger.info("Server is up.");
-//        log(Level.INFO, "Server is up.", -1);
-        logger.log(Level.INFO, "{0}", new Object[]{"Server is up.", -1});
+        // Loop serves the ports it could bind, start is reported as failed if any port is missing
+        if (registerChannels(selector)) {
+            log.log(Level.INFO, "Server is up.", -1);
+        } else {
+            startFailed = true;
+            log.log(Level.SEVERE, "Server is up, but not every port of its rules is bound.", -1);
+        }
+        started.countDown();
 
         while (selector.isOpen()) {
-            if (Thread.currentThread().isInterrupted()) {
+            if (Thread.currentThread().isInterrupted() || isDrained()) {
                 stop();
-//                logger.info("Server is stopped.");
-//                log(Level.INFO, "Server is stopped.", -1);
-                logger.log(Level.INFO, "{0}", new Object[]{"Server is stopped.", -1});
+                // Pool is shared by every loop, a group reports once all of its loops are stopped
+                if (reportsLeaks) {
+                    bufferPool.reportLeaks();
+                }
+                log.log(Level.INFO, "Server is stopped.", -1);
                 return;
             }
 
+            loopStats.ranTasks(runTasks());
+
             try {
-                selector.select();
+                // Loop wakes up at least once per tick while anything may expire
+                selector.select(wheel.isEmpty() && drainDeadline == 0 ? 0 : wheel.getTickMillis());
             } catch (IOException e) {
-//                logger.log(Level.SEVERE, "Unable to select: " + e.getMessage());
-//                log(Level.SEVERE, "Unable to select: " + e.getMessage(), -1);
-                logger.log(Level.SEVERE, "{0}", new Object[]{"Unable to select: " + e.getMessage(), -1});
+                log.log(Level.SEVERE, "Unable to select: " + e.getMessage(), -1);
             }
 
+            clock.update();
+
 
             Set<SelectionKey> readyKeys = selector.selectedKeys();
+            loopStats.selected(readyKeys.size());
             Iterator<SelectionKey> iterator = readyKeys.iterator();
 
             while (iterator.hasNext()) {
                 SelectionKey key = iterator.next();
 
+                // Key may be cancelled while handling another key, e.g. when a pair is closed
+                if (!key.isValid()) {
+                    iterator.remove();
+                    continue;
+                }
+
                 if (key.isAcceptable()) {
                     handleAcceptEvent(selector, key);
                 }
@@ -514,7 +1118,6 @@ public class Server implements Runnable, IServer {
                 if (key.isReadable()) {
                     SelectionKey test = handleReadEvent(selector, key);
                     if (test == null) {
-                        System.out.println("Lost connection.");
                         iterator.remove();
                         continue;
                     }
@@ -526,19 +1129,343 @@ public class Server implements Runnable, IServer {
 
                 iterator.remove();
             }
+
+            wheel.advance(clock.millis());
+            loopStats.scheduled(wheel.size());
         }
 
 
     }
 
+    private void releaseSessions() {
+        if (selector == null || !selector.isOpen()) {
+            return;
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            // Acceptors shared for other loops carry the owning loop instead of a session
+            if (key.attachment() instanceof BasicSession) {
+                releaseSession((BasicSession) key.attachment());
+            }
+        }
+    }
+
     public void stop() {
+        // Changes that did not make it before stop are cancelled
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+
+        // Ports, captures and selector are freed even if a step before fails, a loop that is stopped
+        // is not started again and whatever it keeps open would leak
         try {
-            deregisterChannels();
+            releaseSessions();
+        } finally {
+            captures.closeAll();
+
+            try {
+                deregisterChannels();
+            } finally {
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return false if loop is not up within timeout, or some port of its rules could not be bound
+     */
+    @Override
+    public boolean awaitStarted(long timeoutMillis) throws InterruptedException {
+        return started.await(timeoutMillis, TimeUnit.MILLISECONDS) && !startFailed;
+    }
+
+    /**
+     * Stops accepting and reading, lets queued data reach its peers and then stops the loop. Whatever
+     * is still queued when timeout passes is dropped.
+     */
+    @Override
+    public void drain(long timeoutMillis) {
+        execute(() -> beginDrain(timeoutMillis));
+    }
+
+    private void beginDrain(long timeoutMillis) {
+        drainDeadline = clock.millis() + Math.max(1, timeoutMillis);
+
+        for (Map.Entry<Integer, ServerSocketChannel> entry : serverSocketChannels.entrySet()) {
+            close(entry.getValue(), entry.getKey());
+        }
+        for (Map.Entry<Integer, ServerSocketChannel> entry : acceptors.entrySet()) {
+            close(entry.getValue(), entry.getKey());
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.channel() instanceof SocketChannel) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        log.log(Level.INFO, "Draining queued data.", -1);
+    }
+
+    /**
+     * @return true once draining loop has written data of every connected session, or ran out of time
+     */
+    private boolean isDrained() {
+        if (drainDeadline == 0) {
+            return false;
+        }
+
+        if (clock.millis() >= drainDeadline) {
+            log.log(Level.WARNING, "Drain timed out, data still queued is dropped.", -1);
+            return true;
+        }
+
+        // Data for ports without connection has nowhere to go, it is not waited for
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (key.isValid() && key.channel() instanceof SocketChannel && attachment instanceof BasicSession &&
+                    ((BasicSession) attachment).hasData()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs task on the loop thread. A select in progress is woken up, so task runs without waiting for traffic.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private int runTasks() {
+        int count = 0;
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            count++;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Loop task failed: " + e.getMessage(), -1, e);
+            }
+        }
+
+        return count;
+    }
+
+    private Future<?> submit(Runnable task) {
+        if (!(pool instanceof ManageablePortPool)) {
+            throw new UnsupportedOperationException("Rules of a read only pool can not be changed.");
+        }
+
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * Binds both ports of a new rule. Other rules keep forwarding while the rule is added.
+     *
+     * @return future completed once the loop has bound the ports
+     */
+    public Future<?> addRule(int portA, int portB) {
+        return addRule(portA, portB, RuleOptions.DEFAULT);
+    }
+
+    /**
+     * Binds both ports of a new rule with given socket options.
+     *
+     * @return future completed once the loop has bound the ports
+     */
+    public Future<?> addRule(int portA, int portB, RuleOptions options) {
+        return submit(() -> bindRule(portA, portB, options));
+    }
+
+    /**
+     * Unbinds both ports of the rule of port and closes their connections.
+     *
+     * @return future completed once the loop has unbound the ports
+     */
+    public Future<?> deleteRule(int port) {
+        return submit(() -> unbindRule(port));
+    }
+
+    @Override
+    public void applyRules(Map<Integer, Integer> rules) {
+        applyRules(rules, Collections.<Integer, RuleOptions>emptyMap());
+    }
+
+    @Override
+    public void applyRules(Map<Integer, Integer> rules, Map<Integer, RuleOptions> options) {
+        Map<Integer, Integer> target = new LinkedHashMap<>(rules);
+        Map<Integer, RuleOptions> targetOptions = new HashMap<>(options);
+
+        submit(() -> {
+            RuleChanges changes = RuleChanges.between(pool.getRules(), target);
+
+            for (int port : changes.getRemoved()) {
+                unbindRule(port);
+            }
+
+            for (Map.Entry<Integer, Integer> rule : changes.getAdded().entrySet()) {
+                bindRule(rule.getKey(), rule.getValue(),
+                        targetOptions.getOrDefault(rule.getKey(), RuleOptions.DEFAULT));
+            }
+
+            log.log(Level.INFO, "Rules applied: " + changes + ".", -1);
+        });
+    }
+
+    private void bindRule(int portA, int portB, RuleOptions options) {
+        try {
+            ((ManageablePortPool) pool).addRule(portA, portB, options);
+        } catch (InvalidParameterException e) {
+            log.log(Level.WARNING, "Unable to add rule " + portA + "=" + portB + ": " + e.getMessage(), portA);
+            return;
+        }
+
+        statuses.put(portA, new Status(new AbstractMap.SimpleImmutableEntry<>(portA, portB)));
+        captures.open(portA, portB, options);
+        registerPort(selector, portA);
+        registerPort(selector, portB);
+
+        log.log(Level.INFO, "Rule for ports " + portA + "=" + portB + " is bound.", portA);
+    }
+
+    /**
+     * Accepts connections of port for its owner loop too. Both sockets must be bound with SO_REUSEPORT,
+     * accepted connections are handed over to owner.
+     *
+     * @return future completed once the loop has bound the port
+     */
+    Future<?> addAcceptor(int port, RuleOptions options, Server owner) {
+        return submit(() -> bindAcceptor(port, options, owner));
+    }
+
+    /**
+     * Stops accepting connections of port for another loop.
+     *
+     * @return future completed once the loop has unbound the port
+     */
+    Future<?> removeAcceptor(int port) {
+        return submit(() -> unbindAcceptor(port));
+    }
+
+    private void bindAcceptor(int port, RuleOptions options, Server owner) {
+        if (acceptors.containsKey(port)) {
+            return;
+        }
+
+        ServerSocketChannel serverSocketChannel = openListening(port, options);
+        if (serverSocketChannel == null) {
+            return;
+        }
+
+        try {
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, owner);
+        } catch (ClosedChannelException e) {
+            log.log(Level.SEVERE, "Unable to register ACCEPT event for port " + port + ". " + e.getMessage(), port);
+            close(serverSocketChannel, port);
+            return;
+        }
+
+        acceptors.put(port, serverSocketChannel);
+        log.log(Level.FINE, "Port " + port + " is accepted for another loop.", port);
+    }
+
+    private void unbindAcceptor(int port) {
+        ServerSocketChannel serverSocketChannel = acceptors.remove(port);
+        if (serverSocketChannel == null) {
+            return;
+        }
+
+        close(serverSocketChannel, port);
+
+        // Same as for unbound rules, socket is freed once its key is deregistered
+        try {
+            selector.selectNow();
         } catch (IOException e) {
-            e.printStackTrace();
+            log.log(Level.SEVERE, "Unable to deregister acceptor of port " + port + ": " + e.getMessage(), port);
+        }
+    }
+
+    private void unbindRule(int port) {
+        int dest = pool.getRule(port);
+        if (dest == 0) {
+            return;
         }
 
-        shutdown();
+        unregisterPort(port);
+        unregisterPort(dest);
+        statuses.remove(port);
+        statuses.remove(dest);
+        captures.close(port, dest);
+        ((ManageablePortPool) pool).deleteRule(port);
+
+        // Closed channels keep their sockets until their keys are deregistered by a select,
+        // ports must be free once the rule is unbound
+        try {
+            selector.selectNow();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to deregister channels of port " + port + ": " + e.getMessage(), port);
+        }
+
+        log.log(Level.INFO, "Rule for ports " + port + "=" + dest + " is unbound.", port);
+    }
+
+    private void unregisterPort(int port) {
+        ServerSocketChannel serverSocketChannel = serverSocketChannels.remove(port);
+        if (serverSocketChannel != null) {
+            SelectionKey key = serverSocketChannel.keyFor(selector);
+            if (key != null && key.attachment() != null) {
+                releaseSession((BasicSession) key.attachment());
+            }
+
+            close(serverSocketChannel, port);
+        }
+
+        SocketChannel socketChannel = socketChannels.remove(port);
+        if (socketChannel != null) {
+            close(socketChannel, port);
+        }
+
+        // Multi-connection mode: every connection of the port has its own session
+        Iterator<SocketChannel> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            SocketChannel connection = iterator.next();
+            if (connection.socket().getLocalPort() != port) {
+                continue;
+            }
+
+            SelectionKey key = connection.keyFor(selector);
+            if (key != null && key.attachment() != null) {
+                releaseSession((BasicSession) key.attachment());
+            }
+
+            close(connection, port);
+            iterator.remove();
+        }
+
+        waiting.remove(port);
+        connectionCounts.remove(port);
+        connected.remove(port);
+    }
+
+    private void close(Channel channel, int port) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to close channel: " + e.getMessage(), port);
+        }
     }
 
     public IStatus getStatus(int port) {
@@ -546,4 +1473,14 @@ public class Server implements Runnable, IServer {
         return statuses.get(port);
     }
 
+    @Override
+    public List<IStatus> getStatuses() {
+        return new ArrayList<>(statuses.values());
+    }
+
+    @Override
+    public List<LoopStats> getLoopStats() {
+        return Collections.singletonList(loopStats);
+    }
+
 }
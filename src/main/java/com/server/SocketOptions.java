@@ -0,0 +1,85 @@
+package com.server;
+
+import com.server.log.TunnelLog;
+import com.server.portpool.RuleOptions;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+/**
+ * Applies socket options of a rule to its channels. Shared by forwarding engines, failures are logged
+ * and the channel is used with the options that could be set.
+ */
+final class SocketOptions {
+    private static final TunnelLog log = TunnelLog.getLog(SocketOptions.class);
+
+    private SocketOptions() {
+    }
+
+    static void configureListening(ServerSocketChannel channel, RuleOptions options, int port) {
+        if (options.isDefault()) {
+            return;
+        }
+
+        // Accepted connections inherit receive buffer, window scale is agreed before accept
+        setOption(channel, StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize(), port);
+
+        if (options.isReusePort()) {
+            SocketOption<Boolean> reusePort = reusePortOption(channel);
+            if (reusePort != null) {
+                setOption(channel, reusePort, true, port);
+            } else {
+                log.log(Level.WARNING, "SO_REUSEPORT is not supported, port " + port +
+                        " is bound without it.", port);
+            }
+        }
+    }
+
+    static void configureConnection(SocketChannel channel, RuleOptions options, int port) {
+        if (options.isDefault()) {
+            return;
+        }
+
+        setOption(channel, StandardSocketOptions.TCP_NODELAY, options.getTcpNoDelay(), port);
+        setOption(channel, StandardSocketOptions.SO_RCVBUF, options.getReceiveBufferSize(), port);
+        setOption(channel, StandardSocketOptions.SO_SNDBUF, options.getSendBufferSize(), port);
+        setOption(channel, StandardSocketOptions.SO_KEEPALIVE, options.getKeepAlive(), port);
+        setOption(channel, StandardSocketOptions.SO_LINGER, options.getLinger(), port);
+    }
+
+    /**
+     * Sets an option unless the rule leaves it unset. A failed option does not keep the others from
+     * being set.
+     */
+    private static <T> void setOption(NetworkChannel channel, SocketOption<T> option, T value, int port) {
+        if (value == null) {
+            return;
+        }
+
+        try {
+            channel.setOption(option, value);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            log.log(Level.WARNING, "Unable to set " + option.name() + " to " + value + ": " + e.getMessage(), port);
+        }
+    }
+
+    /**
+     * SO_REUSEPORT has a standard constant since Java 9 only, so it is looked up among options the
+     * channel supports.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(NetworkChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,225 @@
+package com.server.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of direct buffers grouped by power of two size classes. Direct buffers are passed to socket
+ * channels without an intermediate copy, pooling them keeps allocation away from the forwarding path.
+ *
+ * Every thread keeps a small cache per size class, so an event loop that releases what it acquired
+ * never touches shared state. Surplus buffers go to a bounded shared list, the rest is left to GC.
+ * Caches and shared lists are bounded in bytes per size class, so large classes keep few buffers.
+ * Short-lived threads use the shared lists only, a cache of theirs would be lost with the thread.
+ * In debug mode (-Dtunnel.buffers.debug=true) every acquired buffer is tracked with the stack trace
+ * of its allocation, so buffers that were never released can be reported.
+ */
+public class BufferPool {
+    private static final Logger logger = Logger.getLogger(BufferPool.class.getName());
+
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = 1 << 20;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 64;
+    private static final int THREAD_CACHE_BYTES = 1 << 20;
+
+    private static final BufferPool shared = new BufferPool(4096, 1024);
+
+    private final int chunkSize;
+
+    // Shared free lists, their sizes and their limits in buffers per size class
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>();
+    private final AtomicInteger[] freeCount = new AtomicInteger[CLASSES];
+    private final int[] freeLimit = new int[CLASSES];
+
+    private final ThreadLocal<List<ArrayDeque<ByteBuffer>>> caches = ThreadLocal.withInitial(BufferPool::newCache);
+
+    // Leak detection, buffers that are out of the pool with their allocation traces
+    private volatile boolean leakDetection = Boolean.getBoolean("tunnel.buffers.debug");
+    private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * @param maxCached shared buffers kept per size class, counted in chunks: a class of larger buffers
+     *                  keeps as many bytes, in fewer buffers
+     */
+    public BufferPool(int chunkSize, int maxCached) {
+        assert (chunkSize > 0 && maxCached >= 0);
+
+        this.chunkSize = chunkSize;
+        long maxBytes = (long) chunkSize * maxCached;
+
+        for (int i = 0; i < CLASSES; i++) {
+            free.add(new ConcurrentLinkedQueue<>());
+            freeCount[i] = new AtomicInteger();
+            freeLimit[i] = (int) Math.min(maxCached, maxBytes / sizeOf(i));
+        }
+    }
+
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    public static int sizeClassOf(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+
+        return 1 << (32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    private static int indexOf(int sizeClass) {
+        return Integer.numberOfTrailingZeros(sizeClass) - MIN_SHIFT;
+    }
+
+    private static int sizeOf(int index) {
+        return MIN_SIZE << index;
+    }
+
+    // Buffers a thread keeps of a size class, at least one of the largest
+    private static int threadLimit(int index) {
+        return Math.max(1, Math.min(THREAD_CACHE_SIZE, THREAD_CACHE_BYTES / sizeOf(index)));
+    }
+
+    private static List<ArrayDeque<ByteBuffer>> newCache() {
+        List<ArrayDeque<ByteBuffer>> cache = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++) {
+            cache.add(new ArrayDeque<>());
+        }
+
+        return cache;
+    }
+
+    public ByteBuffer acquire() {
+        return acquire(chunkSize);
+    }
+
+    public ByteBuffer acquire(int size) {
+        return acquire(size, true);
+    }
+
+    /**
+     * Takes a buffer from the shared lists, for threads that end soon and would strand buffers in
+     * a cache of their own. Such buffers go back with {@link #releaseShared(ByteBuffer)}.
+     */
+    public ByteBuffer acquireShared(int size) {
+        return acquire(size, false);
+    }
+
+    private ByteBuffer acquire(int size, boolean cached) {
+        assert (size > 0);
+
+        int sizeClass = sizeClassOf(size);
+
+        // Buffers above the largest class are not pooled
+        if (sizeClass > MAX_SIZE) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        int index = indexOf(sizeClass);
+        ByteBuffer buffer = cached ? caches.get().get(index).pollFirst() : null;
+
+        if (buffer == null) {
+            buffer = free.get(index).poll();
+            if (buffer != null) {
+                freeCount[index].decrementAndGet();
+            }
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        }
+
+        if (leakDetection) {
+            outstanding.put(buffer, new Throwable("Buffer of " + sizeClass + " bytes acquired here"));
+        }
+
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        release(buffer, true);
+    }
+
+    public void releaseShared(ByteBuffer buffer) {
+        release(buffer, false);
+    }
+
+    private void release(ByteBuffer buffer, boolean cached) {
+        // Foreign buffers are left to GC
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() < MIN_SIZE || buffer.capacity() > MAX_SIZE ||
+                Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+
+        if (leakDetection && outstanding.remove(buffer) == null) {
+            logger.log(Level.WARNING, "Buffer released twice or not acquired from pool: " + buffer,
+                    new Throwable("Released here"));
+            return;
+        }
+
+        buffer.clear();
+        int index = indexOf(buffer.capacity());
+
+        if (cached) {
+            ArrayDeque<ByteBuffer> cache = caches.get().get(index);
+            if (cache.size() < threadLimit(index)) {
+                cache.addFirst(buffer);
+                return;
+            }
+        }
+
+        if (freeCount[index].incrementAndGet() <= freeLimit[index]) {
+            free.get(index).offer(buffer);
+        } else {
+            freeCount[index].decrementAndGet();
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Number of buffers ready for reuse: in the shared lists and in the calling thread's cache.
+     */
+    public int getCached() {
+        int cached = 0;
+        List<ArrayDeque<ByteBuffer>> cache = caches.get();
+
+        for (int i = 0; i < CLASSES; i++) {
+            cached += freeCount[i].get() + cache.get(i).size();
+        }
+
+        return cached;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+
+        if (!leakDetection) {
+            outstanding.clear();
+        }
+    }
+
+    public int getLeakCount() {
+        return outstanding.size();
+    }
+
+    public void reportLeaks() {
+        synchronized (outstanding) {
+            for (Throwable trace : outstanding.values()) {
+                logger.log(Level.WARNING, "Buffer was never released to pool.", trace);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.server.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Offline reader of capture files. Frames are printed as plain records, or exported into a pcap file.
+ *
+ * Pcap has no link type for data of a TCP stream alone, so frames are stored with user link type 147.
+ * Every packet starts with source and destination ports, two bytes each, followed by captured data.
+ *
+ * Usage: java com.server.capture.CaptureExport capture.ring [--pcap out.pcap]
+ */
+public final class CaptureExport {
+    static final int PCAP_MAGIC = 0xa1b2c3d4;
+    static final int LINKTYPE_USER0 = 147;
+    private static final int SNAPLEN = 262144;
+
+    private CaptureExport() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1 && !(args.length == 3 && "--pcap".equals(args[1]))) {
+            System.err.println("Usage: CaptureExport <capture file> [--pcap <output file>]");
+            System.exit(2);
+        }
+
+        List<CaptureFrame> frames = CaptureRing.read(Paths.get(args[0]));
+
+        if (args.length == 3) {
+            Path output = Paths.get(args[2]);
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+                writePcap(frames, out);
+            }
+            System.err.println(frames.size() + " frames written to " + output);
+        } else {
+            writePlain(frames, System.out);
+        }
+    }
+
+    /**
+     * One record per frame: time, direction, forwarded and stored lengths, then stored data as hex.
+     */
+    public static void writePlain(List<CaptureFrame> frames, PrintStream out) {
+        for (CaptureFrame frame : frames) {
+            long micros = frame.getTimestampMicros();
+            Instant time = Instant.ofEpochSecond(micros / 1000000, micros % 1000000 * 1000);
+
+            out.println(time + " " + frame.getSource() + " -> " + frame.getDest() + " length=" +
+                    frame.getLength() + " stored=" + frame.getData().length);
+            out.println(toHex(frame.getData()));
+        }
+        out.flush();
+    }
+
+    public static void writePcap(List<CaptureFrame> frames, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+
+        // Global header, big endian with microsecond timestamps
+        data.writeInt(PCAP_MAGIC);
+        data.writeShort(2);
+        data.writeShort(4);
+        data.writeInt(0);
+        data.writeInt(0);
+        data.writeInt(SNAPLEN);
+        data.writeInt(LINKTYPE_USER0);
+
+        for (CaptureFrame frame : frames) {
+            long micros = frame.getTimestampMicros();
+            byte[] payload = frame.getData();
+
+            data.writeInt((int) (micros / 1000000));
+            data.writeInt((int) (micros % 1000000));
+            data.writeInt(4 + payload.length);
+            data.writeInt(4 + frame.getLength());
+            data.writeShort(frame.getSource());
+            data.writeShort(frame.getDest());
+            data.write(payload);
+        }
+
+        data.flush();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 3);
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) {
+                hex.append(i % 32 == 0 ? '\n' : ' ');
+            }
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.server.capture;
+
+/**
+ * Data read from one port of a rule and forwarded to the other, as stored in a capture ring.
+ */
+public final class CaptureFrame {
+    private final long timestampMicros;
+    private final int source;
+    private final int dest;
+    private final int length;
+    private final byte[] data;
+
+    public CaptureFrame(long timestampMicros, int source, int dest, int length, byte[] data) {
+        this.timestampMicros = timestampMicros;
+        this.source = source;
+        this.dest = dest;
+        this.length = length;
+        this.data = data;
+    }
+
+    /**
+     * @return time data was captured at, in microseconds since epoch
+     */
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
+    /**
+     * @return port data was read from
+     */
+    public int getSource() {
+        return source;
+    }
+
+    /**
+     * @return port data was forwarded to
+     */
+    public int getDest() {
+        return dest;
+    }
+
+    /**
+     * @return number of bytes forwarded, data holds less when the frame was truncated
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,225 @@
+package com.server.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Traffic capture into a memory-mapped file of fixed size. Frames are copied into the mapping, which
+ * costs a memory copy and no system call, and the kernel writes pages back to disk on its own. When
+ * the ring is full the oldest frames are overwritten, so the file never grows and always holds the
+ * latest traffic.
+ *
+ * File starts with a header, frames follow back to back and never wrap around the end of the file:
+ * a frame that does not fit is written at the start and the rest of the file is marked as padding.
+ * Frames to be overwritten are dropped from the header before the new frame is written, and the new
+ * frame is counted once it is complete, so the file can be read at any time, also after a crash.
+ *
+ * Writes are synchronized, copy loops of both directions of a pair may write at once.
+ */
+public class CaptureRing implements Closeable {
+    static final int MAGIC = 0x54434150;
+    static final int VERSION = 1;
+
+    // Magic, version, data size, max frame data, head, tail, live frames, total frames
+    static final int HEADER = 48;
+    private static final int DATA_SIZE_AT = 8;
+    private static final int MAX_DATA_AT = 12;
+    private static final int HEAD_AT = 16;
+    private static final int TAIL_AT = 24;
+    private static final int LIVE_AT = 32;
+    private static final int TOTAL_AT = 40;
+
+    // Stored length, forwarded length, time, source and destination ports
+    static final int FRAME_HEADER = 24;
+    static final int PADDING = -1;
+
+    public static final int DEFAULT_MAX_DATA = 64 * 1024;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    // Frames are copied through a view of their own, position of the mapping stays at zero
+    private final ByteBuffer view;
+    private final int dataSize;
+    private final int maxData;
+
+    // Offsets in data area of the oldest frame and of the next one to write
+    private int head = 0;
+    private int tail = 0;
+    private long live = 0;
+    private long total = 0;
+
+    // Frame times are kept in microseconds since epoch, counted by the monotonic clock from opening
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+    private final long baseNanos = System.nanoTime();
+
+    private CaptureRing(FileChannel channel, MappedByteBuffer map, int dataSize, int maxData) {
+        this.channel = channel;
+        this.map = map;
+        this.view = map.duplicate();
+        this.dataSize = dataSize;
+        this.maxData = maxData;
+    }
+
+    /**
+     * Creates the file, or starts it over, with room for size bytes including header.
+     *
+     * @param maxData most bytes kept of a single read, the rest of it is counted but not stored
+     */
+    public static CaptureRing create(Path path, int size, int maxData) throws IOException {
+        int dataSize = size - HEADER;
+        if (maxData <= 0 || dataSize < FRAME_HEADER + maxData) {
+            throw new IllegalArgumentException("Capture of " + size + " bytes has no room for frames of " +
+                    maxData + " bytes.");
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer map;
+        try {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        CaptureRing ring = new CaptureRing(channel, map, dataSize, maxData);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(DATA_SIZE_AT, dataSize);
+        map.putInt(MAX_DATA_AT, maxData);
+        ring.updateHeader();
+        return ring;
+    }
+
+    /**
+     * Stores remaining bytes of data, position of data is not changed.
+     */
+    public synchronized void write(int source, int dest, ByteBuffer data) {
+        int length = data.remaining();
+        int stored = Math.min(length, maxData);
+        int frame = FRAME_HEADER + stored;
+
+        // Frame goes to the start if it does not fit, the rest of the file is given up together with
+        // frames there. Overwritten frames leave the header before anything is written over them
+        int padding = -1;
+        if (tail + frame > dataSize) {
+            reclaim(tail, dataSize);
+            padding = tail;
+            tail = 0;
+        }
+        reclaim(tail, tail + frame);
+        updateHeader();
+
+        if (padding >= 0 && dataSize - padding >= FRAME_HEADER) {
+            map.putInt(HEADER + padding, PADDING);
+        }
+
+        int at = HEADER + tail;
+        map.putInt(at, stored);
+        map.putInt(at + 4, length);
+        map.putLong(at + 8, baseMicros + (System.nanoTime() - baseNanos) / 1000);
+        map.putInt(at + 16, source);
+        map.putInt(at + 20, dest);
+
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(position + stored);
+        view.position(at + FRAME_HEADER);
+        view.put(data);
+        data.limit(limit);
+        data.position(position);
+
+        tail += frame;
+        live++;
+        total++;
+        updateHeader();
+    }
+
+    // Drops frames starting within [from, to) of data area, they are about to be overwritten
+    private void reclaim(int from, int to) {
+        while (live > 0 && head >= from && head < to) {
+            head = next(head);
+            live--;
+        }
+
+        if (live == 0) {
+            head = tail;
+        }
+    }
+
+    // Offset of frame after the one at offset, the end of the file wraps around
+    private int next(int offset) {
+        int stored = map.getInt(HEADER + offset);
+        offset += FRAME_HEADER + stored;
+        return (dataSize - offset < FRAME_HEADER || map.getInt(HEADER + offset) == PADDING) ? 0 : offset;
+    }
+
+    private void updateHeader() {
+        map.putLong(HEAD_AT, head);
+        map.putLong(TAIL_AT, tail);
+        map.putLong(LIVE_AT, live);
+        map.putLong(TOTAL_AT, total);
+    }
+
+    /**
+     * @return frames stored since the ring was created, overwritten ones included
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+
+    /**
+     * Reads frames of a capture file, oldest first.
+     */
+    public static List<CaptureFrame> read(Path path) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.remaining() < HEADER || file.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a capture file.");
+        }
+        if (file.getInt(4) != VERSION) {
+            throw new IOException("Capture file version " + file.getInt(4) + " is not supported.");
+        }
+
+        int dataSize = file.getInt(DATA_SIZE_AT);
+        int offset = (int) file.getLong(HEAD_AT);
+        long live = file.getLong(LIVE_AT);
+
+        List<CaptureFrame> frames = new ArrayList<>();
+        for (long i = 0; i < live; i++) {
+            if (dataSize - offset < FRAME_HEADER || file.getInt(HEADER + offset) == PADDING) {
+                offset = 0;
+            }
+
+            int at = HEADER + offset;
+            int stored = file.getInt(at);
+            byte[] data = new byte[stored];
+            file.position(at + FRAME_HEADER);
+            file.get(data);
+
+            frames.add(new CaptureFrame(file.getLong(at + 8), file.getInt(at + 16), file.getInt(at + 20),
+                    file.getInt(at + 4), data));
+            offset += FRAME_HEADER + stored;
+        }
+
+        return frames;
+    }
+}
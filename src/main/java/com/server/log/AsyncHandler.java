@@ -0,0 +1,90 @@
+package com.server.log;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Handler that hands records over to a ring buffer and publishes them to the target handler on its
+ * own thread. Logging thread never blocks on I/O, when the ring is full records are dropped.
+ * Appender parks while the ring is empty and the first record that comes wakes it up.
+ */
+public class AsyncHandler extends Handler {
+    private static final int BATCH = 256;
+
+    private final Handler target;
+    private final RingBuffer<LogRecord> ring;
+    private final Thread appender;
+    private volatile boolean closed = false;
+
+    // Set by the appender before it checks the ring for the last time and parks. Producers check it
+    // after their offer, so either the appender sees the record or the producer sees it parking
+    private volatile boolean parked = false;
+
+    public AsyncHandler(Handler target, int capacity) {
+        this.target = target;
+        this.ring = new RingBuffer<>(capacity);
+        setLevel(target.getLevel());
+
+        appender = new Thread(this::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    /**
+     * Wraps every handler of the logger into an async one.
+     */
+    public static void install(Logger logger, int capacity) {
+        for (Handler handler : logger.getHandlers()) {
+            if (handler instanceof AsyncHandler) {
+                continue;
+            }
+
+            logger.removeHandler(handler);
+            logger.addHandler(new AsyncHandler(handler, capacity));
+        }
+    }
+
+    private void append() {
+        while (!closed || ring.size() > 0) {
+            if (ring.drain(target::publish, BATCH) == 0) {
+                parked = true;
+                if (ring.size() == 0 && !closed) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!closed && isLoggable(record) && ring.offer(record) && parked) {
+            LockSupport.unpark(appender);
+        }
+    }
+
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        closed = true;
+        LockSupport.unpark(appender);
+
+        try {
+            appender.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        target.close();
+    }
+}
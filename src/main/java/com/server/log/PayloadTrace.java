@@ -0,0 +1,79 @@
+package com.server.log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-port switch for payload hex dumps. Dumps are expensive, so they are never produced by log
+ * levels alone, only for ports traced explicitly. Lookup is a lock-free bit test.
+ *
+ * Ports are traced by GUI selection, or from start with -Dtunnel.trace.ports=5000,5001 where there
+ * is no GUI.
+ */
+public final class PayloadTrace {
+    private static final Logger logger = Logger.getLogger(PayloadTrace.class.getName());
+    private static final int PORTS = 65536;
+    private static final AtomicLongArray ports = new AtomicLongArray(PORTS / 64);
+
+    static {
+        String traced = System.getProperty("tunnel.trace.ports", "").trim();
+        if (!traced.isEmpty()) {
+            for (String port : traced.split(",")) {
+                try {
+                    enable(Integer.parseInt(port.trim()));
+                } catch (IllegalArgumentException e) {
+                    logger.log(Level.WARNING, "Port " + port.trim() + " can not be traced: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private PayloadTrace() {
+    }
+
+    public static void enable(int port) {
+        int index = wordOf(port);
+        long bit = 1L << (port & 63);
+        long word;
+        do {
+            word = ports.get(index);
+        } while (!ports.compareAndSet(index, word, word | bit));
+    }
+
+    public static void disable(int port) {
+        int index = wordOf(port);
+        long bit = 1L << (port & 63);
+        long word;
+        do {
+            word = ports.get(index);
+        } while (!ports.compareAndSet(index, word, word & ~bit));
+    }
+
+    public static boolean isEnabled(int port) {
+        return (ports.get(wordOf(port)) & (1L << (port & 63))) != 0;
+    }
+
+    private static int wordOf(int port) {
+        if (port < 0 || port >= PORTS) {
+            throw new IllegalArgumentException("Port " + port + " is out of range.");
+        }
+
+        return port >>> 6;
+    }
+
+    /**
+     * Hex dump of buffer's remaining data. Buffer state is not changed.
+     */
+    public static String toHex(ByteBuffer buffer) {
+        StringBuilder res = new StringBuilder();
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            res.append(Integer.toString((int) buffer.get(i) & 0xFF, 16));
+            res.append(" ");
+        }
+
+        return res.toString().trim();
+    }
+}
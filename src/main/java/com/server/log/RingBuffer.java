@@ -0,0 +1,103 @@
+package com.server.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Producers never block:
+ * when the ring is full the item is dropped and counted.
+ */
+public class RingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    // Sequence of each slot tells whether it is free for a producer or ready for the consumer
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long head = 0;
+
+    public RingBuffer(int capacity) {
+        assert (capacity > 0);
+
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        mask = size - 1;
+        items = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(T item) {
+        long position = tail.get();
+
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    items.set(index, item);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // Slot is still taken by an item from the previous lap
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Must be called by the consumer thread only.
+     */
+    public T poll() {
+        long position = head;
+        int index = (int) (position & mask);
+
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        T item = items.get(index);
+        items.set(index, null);
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+
+        return item;
+    }
+
+    /**
+     * Must be called by the consumer thread only.
+     */
+    public int drain(Consumer<T> consumer, int limit) {
+        int drained = 0;
+        T item;
+
+        while (drained < limit && (item = poll()) != null) {
+            consumer.accept(item);
+            drained++;
+        }
+
+        return drained;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
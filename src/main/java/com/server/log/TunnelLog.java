@@ -0,0 +1,64 @@
+package com.server.log;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Thin layer over java.util.logging for the forwarding path. Records carry message and port as
+ * parameters, the way GUI handlers expect them. Nothing is built or boxed unless the level is
+ * enabled, messages of hot paths are passed as suppliers or guarded with {@link #isLoggable(Level)}
+ * so they are not built at all.
+ * Source class is set explicitly, so records can be published from another thread without
+ * walking the stack of the logging one.
+ */
+public final class TunnelLog {
+    private final Logger logger;
+    private final String source;
+
+    private TunnelLog(Class<?> type) {
+        this.logger = Logger.getLogger(type.getName());
+        this.source = type.getName();
+    }
+
+    public static TunnelLog getLog(Class<?> type) {
+        return new TunnelLog(type);
+    }
+
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public boolean isLoggable(Level level) {
+        return logger.isLoggable(level);
+    }
+
+    public void log(Level level, String message, int port) {
+        log(level, message, port, null);
+    }
+
+    /**
+     * Message is built only when the level is enabled, for records of every connection.
+     */
+    public void log(Level level, Supplier<String> message, int port) {
+        if (logger.isLoggable(level)) {
+            log(level, message.get(), port, null);
+        }
+    }
+
+    public void log(Level level, String message, int port, Throwable thrown) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+
+        LogRecord record = new LogRecord(level, "{0}");
+        record.setParameters(new Object[]{message, port});
+        record.setLoggerName(logger.getName());
+        record.setSourceClassName(source);
+        record.setSourceMethodName("");
+        record.setThrown(thrown);
+
+        logger.log(record);
+    }
+}
@@ -0,0 +1,108 @@
+package com.server.metrics;
+
+import com.server.IServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves tunnel metrics for scraping on /metrics. Requests are handled by a thread of the endpoint,
+ * which reads statuses and loop counters without locks, so a scrape never holds up forwarding.
+ */
+public class MetricsEndpoint {
+    private static final Logger logger = Logger.getLogger(MetricsEndpoint.class.getName());
+    public static final String PATH = "/metrics";
+
+    // Scrape in flight gets this long to complete on stop
+    private static final int STOP_DELAY_SECONDS = 1;
+
+    private final IServer server;
+    private volatile HttpServer http;
+    private ExecutorService executor;
+
+    public MetricsEndpoint(IServer server) {
+        this.server = server;
+    }
+
+    public void start(InetSocketAddress address) throws IOException {
+        http = HttpServer.create(address, 0);
+        http.createContext(PATH, this::handle);
+
+        executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        http.setExecutor(executor);
+        http.start();
+
+        logger.info("Metrics are served on http://" + address.getHostString() + ":" + getPort() + PATH);
+    }
+
+    /**
+     * Stops accepting scrapes and returns once the one in flight, if any, is done.
+     */
+    public void stop() {
+        HttpServer running = http;
+        if (running == null) {
+            return;
+        }
+
+        http = null;
+        running.stop(STOP_DELAY_SECONDS);
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(STOP_DELAY_SECONDS, TimeUnit.SECONDS)) {
+                logger.warning("Metrics scrape did not complete on stop.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return port the endpoint listens on, useful when started on port 0, -1 if it is not running
+     */
+    public int getPort() {
+        HttpServer running = http;
+        return (running == null) ? -1 : running.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // Body is rendered in full first, headers go out once with the status it ended with
+            byte[] body;
+            try {
+                body = OpenMetricsFormat.write(server.getStatuses(), server.getLoopStats())
+                        .getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Unable to serve metrics.", e);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", OpenMetricsFormat.CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.server.metrics;
+
+import com.server.LoopStats;
+import com.server.status.ILatencyStatus;
+import com.server.status.IStatus;
+import com.server.status.LatencySnapshot;
+import com.server.status.StatusSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes rule statuses and loop counters in OpenMetrics text format. Every status is copied once
+ * first, so all families show the same values of a rule and forwarding threads are never waited for.
+ */
+public final class OpenMetricsFormat {
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private OpenMetricsFormat() {
+    }
+
+    public static String write(List<IStatus> statuses, List<LoopStats> loops) {
+        List<StatusSnapshot> snapshots = new ArrayList<>(statuses.size());
+        for (IStatus status : statuses) {
+            snapshots.add(status.snapshot());
+        }
+
+        StringBuilder out = new StringBuilder(256 + snapshots.size() * 1024);
+
+        family(out, "tunnel_sent_bytes", "counter", "bytes", "Bytes read from the first port of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_sent_bytes_total", status, status.getSent());
+        }
+
+        family(out, "tunnel_received_bytes", "counter", "bytes", "Bytes read from the second port of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_received_bytes_total", status, status.getRecv());
+        }
+
+        family(out, "tunnel_sent_messages", "counter", null, "Reads from the first port of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_sent_messages_total", status, status.getMessagesSent());
+        }
+
+        family(out, "tunnel_received_messages", "counter", null, "Reads from the second port of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_received_messages_total", status, status.getMessagesRecv());
+        }
+
+        family(out, "tunnel_accepts", "counter", null, "Connections accepted on ports of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_accepts_total", status, status.getAccepts());
+        }
+
+        family(out, "tunnel_dropped_bytes", "counter", "bytes", "Bytes dropped by lossy sessions of a rule.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_dropped_bytes_total", status, status.getDrops());
+        }
+
+        family(out, "tunnel_connected", "gauge", null, "1 while both ports of a rule are connected.");
+        for (StatusSnapshot status : snapshots) {
+            sample(out, "tunnel_connected", status, status.isConnected() ? 1 : 0);
+        }
+
+        family(out, "tunnel_dwell_seconds", "summary", "seconds",
+                "Time from reading data until it is written to the peer.");
+        for (StatusSnapshot status : snapshots) {
+            latency(out, "tunnel_dwell_seconds", status, status.getDwellLatency());
+        }
+
+        family(out, "tunnel_queue_seconds", "summary", "seconds", "Time data spends queued in the peer session.");
+        for (StatusSnapshot status : snapshots) {
+            latency(out, "tunnel_queue_seconds", status, status.getQueueLatency());
+        }
+
+        if (!loops.isEmpty()) {
+            loops(out, loops);
+        }
+
+        out.append("# EOF\n");
+        return out.toString();
+    }
+
+    private static void loops(StringBuilder out, List<LoopStats> loops) {
+        family(out, "tunnel_loop_selects", "counter", null, "Selects done by a selector loop.");
+        for (int i = 0; i < loops.size(); i++) {
+            loopSample(out, "tunnel_loop_selects_total", i, loops.get(i).getSelects());
+        }
+
+        family(out, "tunnel_loop_events", "counter", null, "Ready keys handled by a selector loop.");
+        for (int i = 0; i < loops.size(); i++) {
+            loopSample(out, "tunnel_loop_events_total", i, loops.get(i).getEvents());
+        }
+
+        family(out, "tunnel_loop_tasks", "counter", null, "Tasks of other threads run by a selector loop.");
+        for (int i = 0; i < loops.size(); i++) {
+            loopSample(out, "tunnel_loop_tasks_total", i, loops.get(i).getTasks());
+        }
+
+        family(out, "tunnel_loop_timeouts", "gauge", null, "Timeouts scheduled on the timing wheel of a loop.");
+        for (int i = 0; i < loops.size(); i++) {
+            loopSample(out, "tunnel_loop_timeouts", i, loops.get(i).getTimeouts());
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String type, String unit, String help) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        if (unit != null) {
+            out.append("# UNIT ").append(name).append(' ').append(unit).append('\n');
+        }
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, IStatus status, long value) {
+        out.append(name).append('{');
+        rule(out, status);
+        out.append("} ").append(value).append('\n');
+    }
+
+    private static void latency(StringBuilder out, String name, ILatencyStatus status, LatencySnapshot latency) {
+        quantile(out, name, status, "0.5", latency.getP50());
+        quantile(out, name, status, "0.99", latency.getP99());
+        quantile(out, name, status, "0.999", latency.getP999());
+        sample(out, name + "_count", status, latency.getCount());
+    }
+
+    private static void quantile(StringBuilder out, String name, IStatus status, String quantile, long nanos) {
+        out.append(name).append('{');
+        rule(out, status);
+        out.append(",quantile=\"").append(quantile).append("\"} ").append(nanos / NANOS_PER_SECOND).append('\n');
+    }
+
+    private static void rule(StringBuilder out, IStatus status) {
+        Map.Entry<Integer, Integer> rule = status.getRule();
+        out.append("rule=\"").append(rule.getKey()).append(':').append(rule.getValue()).append('"');
+    }
+
+    private static void loopSample(StringBuilder out, String name, int loop, long value) {
+        out.append(name).append("{loop=\"").append(loop).append("\"} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,15 @@
+package com.server.pairing;
+
+import com.server.session.BasicSession;
+
+import java.util.Deque;
+
+/**
+ * Pairs a new connection with the connection that has been waiting the longest.
+ */
+public class FifoPairing implements PairingStrategy {
+    @Override
+    public BasicSession pick(BasicSession connection, Deque<BasicSession> waiting) {
+        return waiting.pollFirst();
+    }
+}
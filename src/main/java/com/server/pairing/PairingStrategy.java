@@ -0,0 +1,18 @@
+package com.server.pairing;
+
+import com.server.session.BasicSession;
+
+import java.util.Deque;
+
+/**
+ * Decides which waiting connection of the opposite port a new connection is paired with.
+ */
+public interface PairingStrategy {
+    /**
+     * Removes and returns the connection to pair with, or returns null to make the new one wait.
+     *
+     * @param connection new connection
+     * @param waiting unpaired connections of the opposite port in order of their arrival
+     */
+    BasicSession pick(BasicSession connection, Deque<BasicSession> waiting);
+}
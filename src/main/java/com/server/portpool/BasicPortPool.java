@@ -1,10 +1,11 @@
 package com.server.portpool;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public interface BasicPortPool {
     int getRule(int port);
-    ArrayList<Integer> getPorts();
+    List<Integer> getPorts();
     Map<Integer, Integer> getRules();
+    RuleOptions getOptions(int port);
 }
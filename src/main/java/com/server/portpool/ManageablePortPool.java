@@ -3,6 +3,7 @@ package com.server.portpool;
 
 public interface ManageablePortPool extends BasicPortPool {
     void addRule(int portA, int portB);
+    void addRule(int portA, int portB, RuleOptions options);
     String toString();
     void deleteRule(int port);
 }
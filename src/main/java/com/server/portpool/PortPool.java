@@ -2,66 +2,127 @@ package com.server.portpool;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
+/**
+ * Rules are kept in a dense table indexed by port, so a lookup is a single array read with no boxing.
+ * Port and rule listings are built once per change and handed out as unmodifiable views.
+ */
 public class PortPool implements BasicPortPool, ManageablePortPool {
     private static final Logger logger = Logger.getLogger(PortPool.class.getName());
-    private Map<Integer, Integer> rules;
+    public static final int MAX_PORT = 0xFFFF;
+
+    // Peer port of every port, 0 when the port has no rule
+    private final int[] table = new int[MAX_PORT + 1];
+
+    // Ports in the order rules were added, each rule as two neighbouring entries
+    private final List<Integer> ports = new ArrayList<>();
+
+    // Socket options of both ports of rules that have any, looked up on bind and accept only
+    private final Map<Integer, RuleOptions> options = new HashMap<>();
+
+    // Cached views, dropped on every change
+    private List<Integer> portsView;
+    private Map<Integer, Integer> rulesView;
 
 
     public PortPool() {
-        rules = new HashMap<>();
+    }
+
+    private static boolean isValid(int port) {
+        return port > 0 && port <= MAX_PORT;
     }
 
     public void addRule(int portA, int portB) throws InvalidParameterException {
+        addRule(portA, portB, RuleOptions.DEFAULT);
+    }
+
+    public void addRule(int portA, int portB, RuleOptions options) throws InvalidParameterException {
+        assert (options != null);
         assert (portA > 0 && portB > 0);
         assert (portA != portB);
 
-        if (rules.containsKey(portA) || rules.containsKey(portB)) {
-            throw new InvalidParameterException("Pool contains rule with one of ports: " + portA + " " + portB);
+        if (!isValid(portA) || !isValid(portB)) {
+            throw new InvalidParameterException("Ports are out of range: " + portA + " " + portB);
         }
 
-        rules.put(portA, portB);
-        rules.put(portB, portA);
+        if (table[portA] != 0 || table[portB] != 0) {
+            throw new InvalidParameterException("Pool contains rule with one of ports: " + portA + " " + portB);
+        }
 
-        logger.info("Rule for ports " + portA + "=" + portB + " added.");
+        table[portA] = portB;
+        table[portB] = portA;
+        ports.add(portA);
+        ports.add(portB);
+        invalidateViews();
+
+        if (!options.isDefault()) {
+            this.options.put(portA, options);
+            this.options.put(portB, options);
+            logger.info("Rule for ports " + portA + "=" + portB + " added with options: " + options + ".");
+        } else {
+            logger.info("Rule for ports " + portA + "=" + portB + " added.");
+        }
     }
 
     public int getRule(int port) {
-        if (rules.containsKey(port))
-            return rules.get(port);
+        if (isValid(port) && table[port] != 0)
+            return table[port];
+
+        if (logger.isLoggable(Level.WARNING)) {
+            logger.log(Level.WARNING, "Accessed port " + port + " has no rule in pool.");
+        }
 
-        logger.log(Level.WARNING, "Accessed port " + port + " has no rule in pool.\n" +
-                "Current pool state is:\n" + this.toString());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Current pool state is:\n" + this.toString());
+        }
 
         return 0;
     }
 
+    public RuleOptions getOptions(int port) {
+        RuleOptions result = options.get(port);
+        return result != null ? result : RuleOptions.DEFAULT;
+    }
+
     public void deleteRule(int port) {
-        if (!rules.containsKey(port)) {
+        if (!isValid(port) || table[port] == 0) {
             logger.info("Attempting to delete nonexistent rule for port " + port);
             return;
         }
 
         logger.info("Deleting rule for port " + port);
 
-        int dest = getRule(port);
+        int dest = table[port];
 
-        rules.remove(port);
-        rules.remove(dest);
+        table[port] = 0;
+        table[dest] = 0;
+        options.remove(port);
+        options.remove(dest);
+        ports.remove(Integer.valueOf(port));
+        ports.remove(Integer.valueOf(dest));
+        invalidateViews();
+    }
+
+    private void invalidateViews() {
+        portsView = null;
+        rulesView = null;
     }
 
     public String toString() {
         StringBuilder builder = new StringBuilder();
 
-        for (Map.Entry<Integer, Integer> entry : this.rules.entrySet()) {
-            builder.append(entry.getKey());
+        for (int port : ports) {
+            builder.append(port);
             builder.append(" ---> ");
-            builder.append(entry.getValue());
+            builder.append(table[port]);
             builder.append("\n");
         }
 
@@ -73,30 +134,27 @@ public class PortPool implements BasicPortPool, ManageablePortPool {
                 "-----------------------\n";
     }
 
-    public ArrayList<Integer> getPorts() {
-        ArrayList<Integer> list = new ArrayList<>();
-
-        for (Map.Entry<Integer, Integer> entry : rules.entrySet()) {
-            if (!list.contains(entry.getKey())) {
-                list.add(entry.getKey());
-                list.add(entry.getValue());
-            }
+    public List<Integer> getPorts() {
+        if (portsView == null) {
+            portsView = Collections.unmodifiableList(new ArrayList<>(ports));
         }
 
-        return list;
+        return portsView;
     }
 
     public Map<Integer, Integer> getRules() {
-        Map<Integer, Integer> result = new HashMap<>();
+        if (rulesView == null) {
+            Map<Integer, Integer> result = new LinkedHashMap<>();
 
-        for (Map.Entry entry: rules.entrySet()) {
-            int port = (int) entry.getValue();
-            if (!result.containsKey(port)) {
-                result.put((int) entry.getKey(), (int) entry.getValue());
+            // Every rule is stored as two neighbouring ports, the first one is the key
+            for (int i = 0; i < ports.size(); i += 2) {
+                result.put(ports.get(i), ports.get(i + 1));
             }
+
+            rulesView = Collections.unmodifiableMap(result);
         }
 
-        return result;
+        return rulesView;
     }
 
 }
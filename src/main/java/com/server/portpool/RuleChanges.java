@@ -0,0 +1,63 @@
+package com.server.portpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between two rule sets. A rule is the same whichever of its ports is the key, a rule whose
+ * port got another peer is removed and added again.
+ */
+public class RuleChanges {
+    private final List<Integer> removed = new ArrayList<>();
+    private final Map<Integer, Integer> added = new LinkedHashMap<>();
+
+    public static RuleChanges between(Map<Integer, Integer> current, Map<Integer, Integer> target) {
+        RuleChanges changes = new RuleChanges();
+
+        for (Map.Entry<Integer, Integer> rule : current.entrySet()) {
+            if (!contains(target, rule.getKey(), rule.getValue())) {
+                changes.removed.add(rule.getKey());
+            }
+        }
+
+        for (Map.Entry<Integer, Integer> rule : target.entrySet()) {
+            if (!contains(current, rule.getKey(), rule.getValue())) {
+                changes.added.put(rule.getKey(), rule.getValue());
+            }
+        }
+
+        return changes;
+    }
+
+    private static boolean contains(Map<Integer, Integer> rules, int portA, int portB) {
+        Integer peer = rules.get(portA);
+        if (peer != null) {
+            return peer == portB;
+        }
+
+        peer = rules.get(portB);
+        return peer != null && peer == portA;
+    }
+
+    /**
+     * One port of every rule to remove.
+     */
+    public List<Integer> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    public Map<Integer, Integer> getAdded() {
+        return Collections.unmodifiableMap(added);
+    }
+
+    public boolean isEmpty() {
+        return removed.isEmpty() && added.isEmpty();
+    }
+
+    public String toString() {
+        return "removed " + removed.size() + " rules, added " + added.size() + " rules";
+    }
+}
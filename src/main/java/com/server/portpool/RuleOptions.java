@@ -0,0 +1,236 @@
+package com.server.portpool;
+
+import java.util.Objects;
+
+/**
+ * Socket options of both ports of a rule. Options left unset keep system defaults, so a low latency
+ * pair may turn Nagle off while a bulk pair asks for large buffers, each without touching the other.
+ *
+ * Backlog and SO_REUSEPORT apply to listening sockets, the rest to accepted connections. Receive buffer
+ * is also set on listening socket, as window scaling of a connection is agreed before it is accepted.
+ *
+ * A raw rule forwards bytes without inspecting them: no payload trace, no latency records, and reads go
+ * into one large pooled direct buffer per connection, so bulk data crosses the tunnel in few system calls.
+ *
+ * Traffic of a rule may be captured into a ring file of fixed size, see {@link com.server.capture.CaptureRing}.
+ */
+public final class RuleOptions {
+    public static final RuleOptions DEFAULT = new Builder().build();
+    public static final int DEFAULT_CAPTURE_SIZE = 64 * 1024 * 1024;
+
+    private final Boolean tcpNoDelay;
+    private final Integer receiveBufferSize;
+    private final Integer sendBufferSize;
+    private final Boolean keepAlive;
+    private final Integer linger;
+    private final int backlog;
+    private final boolean reusePort;
+    private final boolean raw;
+    private final String capture;
+    private final int captureSize;
+
+    private RuleOptions(Builder builder) {
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.keepAlive = builder.keepAlive;
+        this.linger = builder.linger;
+        this.backlog = builder.backlog;
+        this.reusePort = builder.reusePort;
+        this.raw = builder.raw;
+        this.capture = builder.capture;
+        this.captureSize = builder.captureSize;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return TCP_NODELAY of accepted connections, null to keep system default
+     */
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * @return SO_RCVBUF in bytes, null to keep system default
+     */
+    public Integer getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * @return SO_SNDBUF in bytes, null to keep system default
+     */
+    public Integer getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * @return SO_KEEPALIVE of accepted connections, null to keep system default
+     */
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return SO_LINGER in seconds, negative to turn it off, null to keep system default
+     */
+    public Integer getLinger() {
+        return linger;
+    }
+
+    /**
+     * @return backlog of listening socket, 0 for system default
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * @return path of capture file, null when traffic is not captured
+     */
+    public String getCapture() {
+        return capture;
+    }
+
+    /**
+     * @return size of capture file in bytes
+     */
+    public int getCaptureSize() {
+        return captureSize;
+    }
+
+    public boolean isDefault() {
+        return equals(DEFAULT);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof RuleOptions)) {
+            return false;
+        }
+
+        RuleOptions other = (RuleOptions) o;
+        return backlog == other.backlog && reusePort == other.reusePort && raw == other.raw &&
+                captureSize == other.captureSize && Objects.equals(capture, other.capture) &&
+                Objects.equals(tcpNoDelay, other.tcpNoDelay) &&
+                Objects.equals(receiveBufferSize, other.receiveBufferSize) &&
+                Objects.equals(sendBufferSize, other.sendBufferSize) &&
+                Objects.equals(keepAlive, other.keepAlive) &&
+                Objects.equals(linger, other.linger);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tcpNoDelay, receiveBufferSize, sendBufferSize, keepAlive, linger, backlog, reusePort, raw,
+                capture, captureSize);
+    }
+
+    @Override
+    public String toString() {
+        return "nodelay=" + tcpNoDelay + ", rcvbuf=" + receiveBufferSize + ", sndbuf=" + sendBufferSize +
+                ", keepalive=" + keepAlive + ", linger=" + linger + ", backlog=" + backlog +
+                ", reuseport=" + reusePort + ", raw=" + raw + ", capture=" + capture +
+                ", capturesize=" + captureSize;
+    }
+
+    public static final class Builder {
+        private Boolean tcpNoDelay;
+        private Integer receiveBufferSize;
+        private Integer sendBufferSize;
+        private Boolean keepAlive;
+        private Integer linger;
+        private int backlog;
+        private boolean reusePort;
+        private boolean raw;
+        private String capture;
+        private int captureSize = DEFAULT_CAPTURE_SIZE;
+
+        private Builder() {
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            if (receiveBufferSize <= 0) {
+                throw new IllegalArgumentException("Receive buffer size must be positive: " + receiveBufferSize);
+            }
+
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        public Builder sendBufferSize(int sendBufferSize) {
+            if (sendBufferSize <= 0) {
+                throw new IllegalArgumentException("Send buffer size must be positive: " + sendBufferSize);
+            }
+
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Builder linger(int linger) {
+            this.linger = linger;
+            return this;
+        }
+
+        public Builder backlog(int backlog) {
+            if (backlog < 0) {
+                throw new IllegalArgumentException("Backlog must not be negative: " + backlog);
+            }
+
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder reusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        public Builder raw(boolean raw) {
+            this.raw = raw;
+            return this;
+        }
+
+        public Builder capture(String capture) {
+            this.capture = capture;
+            return this;
+        }
+
+        public Builder captureSize(int captureSize) {
+            if (captureSize <= 0) {
+                throw new IllegalArgumentException("Capture size must be positive: " + captureSize);
+            }
+
+            this.captureSize = captureSize;
+            return this;
+        }
+
+        public RuleOptions build() {
+            return new RuleOptions(this);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.server.replay;
+
+import com.server.capture.CaptureFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Traffic of one client pair to replay: messages with their times and directions. Forward messages
+ * go from the first port of a rule to the second one, the rest go back.
+ */
+public final class ReplayProfile {
+    private final List<Message> messages;
+
+    static final class Message {
+        // Time since the first message
+        final long atMicros;
+        final boolean forward;
+        final byte[] data;
+
+        Message(long atMicros, boolean forward, byte[] data) {
+            this.atMicros = atMicros;
+            this.forward = forward;
+            this.data = data;
+        }
+    }
+
+    private ReplayProfile(List<Message> messages) {
+        this.messages = Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * Profile of a captured rule. The side that sent the first frame is replayed through the first port.
+     * Frames truncated by capture are sent in full length, the part that was not stored is zeros.
+     */
+    public static ReplayProfile fromCapture(List<CaptureFrame> frames) {
+        List<Message> messages = new ArrayList<>(frames.size());
+        if (frames.isEmpty()) {
+            return new ReplayProfile(messages);
+        }
+
+        long start = frames.get(0).getTimestampMicros();
+        int first = frames.get(0).getSource();
+
+        for (CaptureFrame frame : frames) {
+            byte[] data = frame.getData();
+            if (data.length < frame.getLength()) {
+                data = Arrays.copyOf(data, frame.getLength());
+            }
+
+            messages.add(new Message(Math.max(0, frame.getTimestampMicros() - start), frame.getSource() == first,
+                    data));
+        }
+
+        return new ReplayProfile(messages);
+    }
+
+    /**
+     * Request and response exchanges at a fixed interval, payloads are pseudo-random so that misplaced
+     * bytes do not go unnoticed.
+     *
+     * @param responseSize 0 for one way traffic
+     */
+    public static ReplayProfile synthetic(int exchanges, int requestSize, int responseSize, long intervalMicros,
+                                          long seed) {
+        if (exchanges <= 0 || requestSize <= 0 || responseSize < 0 || intervalMicros < 0) {
+            throw new IllegalArgumentException("Synthetic profile needs positive exchanges and request size.");
+        }
+
+        Random random = new Random(seed);
+        List<Message> messages = new ArrayList<>(responseSize > 0 ? exchanges * 2 : exchanges);
+
+        for (int i = 0; i < exchanges; i++) {
+            long at = i * intervalMicros;
+            messages.add(new Message(at, true, bytes(random, requestSize)));
+            if (responseSize > 0) {
+                messages.add(new Message(at, false, bytes(random, responseSize)));
+            }
+        }
+
+        return new ReplayProfile(messages);
+    }
+
+    private static byte[] bytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return messages of one direction in order, receivers check arriving data against them
+     */
+    List<Message> getMessages(boolean forward) {
+        List<Message> result = new ArrayList<>();
+        for (Message message : messages) {
+            if (message.forward == forward) {
+                result.add(message);
+            }
+        }
+
+        return result;
+    }
+
+    List<byte[]> getData(boolean forward) {
+        List<byte[]> data = new ArrayList<>();
+        for (Message message : getMessages(forward)) {
+            data.add(message.data);
+        }
+
+        return data;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Message message : messages) {
+            bytes += message.data.length;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return time of the last message in microseconds, the length of a replay at original speed
+     */
+    public long getDurationMicros() {
+        return messages.isEmpty() ? 0 : messages.get(messages.size() - 1).atMicros;
+    }
+}
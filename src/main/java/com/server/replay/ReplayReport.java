@@ -0,0 +1,87 @@
+package com.server.replay;
+
+import com.server.status.LatencySnapshot;
+
+/**
+ * Outcome of a replay. Latency of a message is the time from starting to send it until its last byte
+ * arrives at the other end of the tunnel.
+ */
+public final class ReplayReport {
+    private final int pairs;
+    private final long messages;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long bytesMismatched;
+    private final long elapsedNanos;
+    private final LatencySnapshot latency;
+
+    ReplayReport(int pairs, long messages, long bytesSent, long bytesReceived, long bytesMismatched,
+                 long elapsedNanos, LatencySnapshot latency) {
+        this.pairs = pairs;
+        this.messages = messages;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.bytesMismatched = bytesMismatched;
+        this.elapsedNanos = elapsedNanos;
+        this.latency = latency;
+    }
+
+    public int getPairs() {
+        return pairs;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return received bytes that differ from the ones sent at their position
+     */
+    public long getBytesMismatched() {
+        return bytesMismatched;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public LatencySnapshot getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return true if every byte sent arrived unchanged and in order
+     */
+    public boolean isExact() {
+        return bytesReceived == bytesSent && bytesMismatched == 0;
+    }
+
+    /**
+     * @return bytes received per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : bytesReceived * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String correctness = isExact() ? "byte-exact" :
+                String.format("%d bytes differ, %d bytes missing", bytesMismatched, bytesSent - bytesReceived);
+
+        return String.format("Replayed %d messages over %d pairs, %d bytes in %.3f s%n" +
+                        "Throughput: %.2f MB/s, %.0f messages/s%n" +
+                        "Latency: %s%n" +
+                        "Correctness: %s",
+                messages, pairs, bytesReceived, elapsedNanos / 1e9,
+                getThroughput() / (1024 * 1024), elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos,
+                latency, correctness);
+    }
+}
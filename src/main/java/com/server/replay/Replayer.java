@@ -0,0 +1,295 @@
+package com.server.replay;
+
+import com.server.capture.CaptureRing;
+import com.server.status.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator that replays a profile through a running tunnel. Every client pair connects to both
+ * ports of its own rule, pair i uses ports firstPort + 2i and firstPort + 2i + 1, the way rules of a
+ * benchmark config are laid out. All pairs replay the same profile at once.
+ *
+ * Each pair has a sender and a receiver per direction. Sender keeps message times scaled by speed,
+ * receivers check arriving bytes against the ones sent and measure latency of every message.
+ *
+ * Usage: java com.server.replay.Replayer (--capture file | --synthetic exchanges,request,response,interval)
+ *        [--host localhost] [--port 5000] [--pairs 1] [--speed 1]
+ * Speed 2 replays twice as fast, 0 sends as fast as the tunnel takes it. Exits with 1 unless byte-exact.
+ */
+public class Replayer {
+    // Time for the tunnel to register both ends of every pair before data flows
+    private static final long SETTLE_MILLIS = 200;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int firstPort;
+    private final int pairs;
+    private final double speed;
+    private long timeoutMillis = 10000;
+
+    public Replayer(String host, int firstPort, int pairs, double speed) {
+        if (pairs <= 0 || speed < 0) {
+            throw new IllegalArgumentException("Replay needs at least one pair and non-negative speed.");
+        }
+
+        this.host = host;
+        this.firstPort = firstPort;
+        this.pairs = pairs;
+        this.speed = speed;
+    }
+
+    /**
+     * @param timeoutMillis longest wait for a message at a receiver past the time it is scheduled to be
+     *                      sent at, whatever has not arrived by then is missing
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public ReplayReport run(ReplayProfile profile) throws IOException, InterruptedException {
+        List<Socket> sockets = new ArrayList<>();
+        ExecutorService threads = Executors.newFixedThreadPool(pairs * 3, task -> {
+            Thread thread = new Thread(task, "replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (int i = 0; i < pairs; i++) {
+                sockets.add(connect(firstPort + i * 2));
+                sockets.add(connect(firstPort + i * 2 + 1));
+            }
+            Thread.sleep(SETTLE_MILLIS);
+
+            // One histogram for the whole run, it can afford the precision of 1/64
+            LatencyHistogram latency = new LatencyHistogram(6);
+            AtomicLong received = new AtomicLong();
+            AtomicLong mismatched = new AtomicLong();
+            List<Future<?>> tasks = new ArrayList<>();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < pairs; i++) {
+                Pair pair = new Pair(sockets.get(i * 2), sockets.get(i * 2 + 1));
+                tasks.add(threads.submit(() -> pair.send(profile, start)));
+                tasks.add(threads.submit(() -> pair.receive(true, profile, start, latency, received, mismatched)));
+                tasks.add(threads.submit(() -> pair.receive(false, profile, start, latency, received, mismatched)));
+            }
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Replay failed: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+            return new ReplayReport(pairs, (long) profile.size() * pairs, profile.getBytes() * pairs, received.get(),
+                    mismatched.get(), elapsed, latency.snapshot());
+        } finally {
+            threads.shutdownNow();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    // Time message is sent at, by System.nanoTime(). As fast as possible means right from the start
+    private long dueTime(ReplayProfile.Message message, long start) {
+        return speed > 0 ? start + (long) (message.atMicros * 1000 / speed) : start;
+    }
+
+    /**
+     * Quiet gaps of the profile are not timeouts: receiver waits for a message until its scheduled
+     * time plus timeout, or for timeout since the last read if that is later.
+     */
+    private int readTimeout(ReplayProfile.Message next, long start) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(Math.max(0, dueTime(next, start) - System.nanoTime()));
+        return (int) Math.min(Integer.MAX_VALUE, wait + timeoutMillis);
+    }
+
+    private class Pair {
+        private final Socket first;
+        private final Socket second;
+
+        // Per direction: end offset of every message sent and the time its sending started
+        private final Queue<long[]> forwardSent = new ConcurrentLinkedQueue<>();
+        private final Queue<long[]> backwardSent = new ConcurrentLinkedQueue<>();
+
+        Pair(Socket first, Socket second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Void send(ReplayProfile profile, long start) throws IOException {
+            OutputStream forward = first.getOutputStream();
+            OutputStream backward = second.getOutputStream();
+            long forwardBytes = 0;
+            long backwardBytes = 0;
+
+            for (ReplayProfile.Message message : profile.getMessages()) {
+                long due = dueTime(message, start);
+                for (long now = System.nanoTime(); now < due; now = System.nanoTime()) {
+                    LockSupport.parkNanos(due - now);
+                }
+
+                // Entry goes first, the receiver may see the data before write returns
+                if (message.forward) {
+                    forwardBytes += message.data.length;
+                    forwardSent.add(new long[]{forwardBytes, System.nanoTime()});
+                    forward.write(message.data);
+                } else {
+                    backwardBytes += message.data.length;
+                    backwardSent.add(new long[]{backwardBytes, System.nanoTime()});
+                    backward.write(message.data);
+                }
+            }
+
+            return null;
+        }
+
+        Void receive(boolean forward, ReplayProfile profile, long start, LatencyHistogram latency,
+                     AtomicLong received, AtomicLong mismatched) throws IOException {
+            Socket socket = forward ? second : first;
+            InputStream in = socket.getInputStream();
+            Queue<long[]> sent = forward ? forwardSent : backwardSent;
+            List<ReplayProfile.Message> expected = profile.getMessages(forward);
+
+            long total = 0;
+            for (ReplayProfile.Message next : expected) {
+                total += next.data.length;
+            }
+
+            byte[] buffer = new byte[READ_SIZE];
+            long count = 0;
+            int message = 0;
+            int offset = 0;
+
+            while (count < total) {
+                // Messages without data have nothing to wait for
+                while (expected.get(message).data.length == 0) {
+                    message++;
+                }
+
+                int read;
+                try {
+                    socket.setSoTimeout(readTimeout(expected.get(message), start));
+                    read = in.read(buffer, 0, (int) Math.min(buffer.length, total - count));
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                if (read < 0) {
+                    break;
+                }
+                long now = System.nanoTime();
+
+                // Bytes are compared with the ones sent at the same position of the stream
+                int differ = 0;
+                for (int i = 0; i < read; i++) {
+                    byte[] data = expected.get(message).data;
+                    while (data.length == 0) {
+                        data = expected.get(++message).data;
+                    }
+
+                    if (buffer[i] != data[offset]) {
+                        differ++;
+                    }
+                    if (++offset == data.length) {
+                        message++;
+                        offset = 0;
+                    }
+                }
+
+                count += read;
+                received.addAndGet(read);
+                if (differ > 0) {
+                    mismatched.addAndGet(differ);
+                }
+
+                for (long[] head = sent.peek(); head != null && head[0] <= count; head = sent.peek()) {
+                    latency.record(now - head[1]);
+                    sent.poll();
+                }
+            }
+
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 5000;
+        int pairs = 1;
+        double speed = 1;
+        ReplayProfile profile = null;
+
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--host":
+                        host = args[i + 1];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--pairs":
+                        pairs = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "--speed":
+                        speed = Double.parseDouble(args[i + 1]);
+                        break;
+                    case "--capture":
+                        profile = ReplayProfile.fromCapture(CaptureRing.read(Paths.get(args[i + 1])));
+                        break;
+                    case "--synthetic":
+                        String[] values = args[i + 1].split(",");
+                        profile = ReplayProfile.synthetic(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                                Integer.parseInt(values[2]), Long.parseLong(values[3]), 1);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                }
+            }
+
+            if (profile == null || args.length % 2 != 0) {
+                throw new IllegalArgumentException("Profile is not given.");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Replayer (--capture <file> | --synthetic <exchanges>,<request>,<response>," +
+                    "<interval us>) [--host <host>] [--port <first port>] [--pairs <n>] [--speed <factor>]");
+            System.exit(2);
+            return;
+        }
+
+        System.out.println("Replaying " + profile.size() + " messages, " + profile.getBytes() + " bytes over " +
+                TimeUnit.MICROSECONDS.toMillis(profile.getDurationMicros()) + " ms, on " + pairs + " pairs.");
+
+        ReplayReport report = new Replayer(host, port, pairs, speed).run(profile);
+        System.out.println(report);
+        System.exit(report.isExact() ? 0 : 1);
+    }
+}
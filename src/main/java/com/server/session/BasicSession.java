@@ -1,12 +1,45 @@
 package com.server.session;
 
+import com.server.buffer.BufferPool;
+import com.server.status.LatencyRecorder;
+import com.server.timer.LoopClock;
+
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 public interface BasicSession {
     void init(int bufferSize, long timeout, int port);
     boolean hasData();
     void writeWithFlip(ByteBuffer buffer);
+    void append(ByteBuffer buffer);
+    ByteBuffer getReadBuffer();
+    ByteBuffer takeReadBuffer();
+    void recordRead(int bytes);
+    void enqueue(ByteBuffer chunk);
+    void enqueue(ByteBuffer chunk, long readAt);
+    void setBufferPool(BufferPool pool);
+    void release();
+    int flushTo(WritableByteChannel channel) throws IOException;
     String getBufferAsString();
     void flashTo(ByteBuffer target);
     int getPort();
+    void setLossless(boolean lossless);
+    boolean isLossless();
+    void setRaw(boolean raw);
+    boolean isRaw();
+    int getQueuedBytes();
+    long takeDroppedBytes();
+    void setLatencyRecorder(LatencyRecorder latency);
+    LatencyRecorder getLatencyRecorder();
+    void setClock(LoopClock clock);
+    void touch();
+    long getLastActivity();
+    void dropIfExpired();
+    long getId();
+    BasicSession getPeer();
+    void setPeer(BasicSession peer);
+    SocketChannel getChannel();
+    void setChannel(SocketChannel channel);
 }
@@ -0,0 +1,51 @@
+package com.server.session;
+
+import com.server.buffer.BufferPool;
+
+/**
+ * Guesses the size of the next read buffer of a connection from its recent reads, in the manner of
+ * Netty's AdaptiveRecvByteBufAllocator. A read that fills the buffer doubles the guess, two reads in
+ * a row that would fit into half of it halve the guess. Sizes follow buffer pool classes.
+ */
+final class RecvSizer {
+    static final int MIN_SIZE = BufferPool.MIN_SIZE;
+    static final int MAX_SIZE = 64 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+    private final int maxIndex;
+    private int index;
+    private boolean decreaseNow = false;
+
+    RecvSizer(int initial, int max) {
+        maxIndex = indexOf(max);
+        index = Math.min(indexOf(initial), maxIndex);
+    }
+
+    private static int indexOf(int size) {
+        size = BufferPool.sizeClassOf(Math.min(Math.max(size, MIN_SIZE), MAX_SIZE));
+        return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+    }
+
+    int guess() {
+        return 1 << (index + MIN_SHIFT);
+    }
+
+    void record(int bytes) {
+        int guess = guess();
+
+        if (bytes >= guess) {
+            index = Math.min(index + 1, maxIndex);
+            decreaseNow = false;
+        } else if (bytes <= guess / 2) {
+            // Single short read after a burst is no reason to shrink
+            if (decreaseNow) {
+                index = Math.max(index - 1, 0);
+                decreaseNow = false;
+            } else {
+                decreaseNow = true;
+            }
+        } else {
+            decreaseNow = false;
+        }
+    }
+}
@@ -1,15 +1,80 @@
 package com.server.session;
 
+import com.server.buffer.BufferPool;
+import com.server.status.LatencyRecorder;
+import com.server.timer.LoopClock;
+
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+/**
+ * Session of a single port. Session owns a read buffer that receives data read from the port's
+ * connection, and an outbound queue that keeps data sent to the port by its peer until the port's
+ * connection is able to take it. A filled read buffer can be handed over to the peer's queue as is,
+ * the session then takes a fresh one from the pool.
+ *
+ * When a port serves many connections at once, every connection has its own session that knows its
+ * connection and the session of the connection it is paired with.
+ */
 public class Session implements BasicSession {
+    /**
+     * Read buffer size of raw sessions. A socket read moves up to this much per system call straight
+     * into native memory, the pool keeps the buffer for reuse.
+     */
+    public static final int RAW_READ_SIZE = 256 * 1024;
+
     private static final Logger logger = Logger.getLogger(Session.class.getName());
+    private static final AtomicLong ids = new AtomicLong();
+
+    // Most buffers passed to a single gathering write, well below IOV_MAX of common systems
+    private static final int MAX_GATHER = 64;
+    private final long id = ids.incrementAndGet();
     private long time;
+    private long lastRead;
+    private LoopClock clock = LoopClock.SYSTEM;
     private int bufferSize;
     private long timeout;
     private int port;
     private ByteBuffer buffer = null;
+    private ByteBuffer readBuffer = null;
+
+    // Size of the next read buffer, follows sizes of recent reads
+    private RecvSizer recv = null;
+
+    // Stands for buffer of a released session
+    private static final ByteBuffer RELEASED = ByteBuffer.allocate(0);
+
+    // Chunks handed over by the peer, each one is ready for reading
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+
+    // Read and enqueue times of queued chunks
+    private final TimestampQueue times = new TimestampQueue();
+
+    // Buffers of a gathering write, allocated on first use
+    private ByteBuffer[] gather = null;
+    private LatencyRecorder latency = null;
+    private BufferPool pool = BufferPool.shared();
+
+    // Connection of the session and its pair, set in multi-connection mode only
+    private SocketChannel channel = null;
+    private BasicSession peer = null;
+
+    // Lossless session never drops queued data, server is responsible for limiting its growth
+    private boolean lossless = false;
+
+    // Raw session forwards bytes untouched, it reads into a fixed large buffer and is never lossy
+    private boolean raw = false;
+
+    // Bytes thrown away by the drop policy since last taken by the server
+    private long droppedBytes = 0;
 
 
     private int getNearestPower2(int size) {
@@ -18,24 +83,61 @@ public class Session implements BasicSession {
 
     private void cleanUpBuffer() {
         buffer.clear();
-        buffer.put(new byte[bufferSize]);
-        buffer.clear();
+    }
+
+    private int getFreeSpace() {
+        return bufferSize - buffer.position();
+    }
+
+    // Drops everything stored in session, dropped bytes are accounted
+    private void drop() {
+        droppedBytes += getQueuedBytes();
+        cleanUpBuffer();
+        cleanUpQueue();
+    }
+
+    private void cleanUpQueue() {
+        for (ByteBuffer chunk : queue) {
+            releaseChunk(chunk);
+        }
+
+        queue.clear();
+        times.clear();
+        queuedBytes = 0;
+    }
+
+    private void releaseChunk(ByteBuffer chunk) {
+        pool.release(chunk);
     }
 
     private boolean isValidByTimeout() {
-        return System.currentTimeMillis() - time < timeout;
+        return clock.millis() - time < timeout;
     }
 
     private void updateTime() {
-        time = System.currentTimeMillis();
+        time = clock.millis();
     }
 
     private void reset(int bufferSize) {
+        droppedBytes += buffer.position();
         this.bufferSize = bufferSize;
-        buffer = ByteBuffer.allocate(bufferSize);
+        releaseChunk(buffer);
+        buffer = pool.acquire(bufferSize);
         updateTime();
     }
 
+    private void grow(int required) {
+        int size = getNearestPower2(required);
+
+        ByteBuffer grown = pool.acquire(size);
+        buffer.flip();
+        grown.put(buffer);
+        releaseChunk(buffer);
+
+        this.bufferSize = size;
+        buffer = grown;
+    }
+
     public void setBufferSize(int bufferSize) {
         this.bufferSize = bufferSize;
     }
@@ -60,6 +162,96 @@ public class Session implements BasicSession {
         return port;
     }
 
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+        recv = null;
+    }
+
+    public void setRaw(boolean raw) {
+        this.raw = raw;
+        if (raw) {
+            setLossless(true);
+        }
+    }
+
+    public boolean isRaw() {
+        return raw;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public int getQueuedBytes() {
+        return buffer.position() + queuedBytes;
+    }
+
+    public long takeDroppedBytes() {
+        long dropped = droppedBytes;
+        droppedBytes = 0;
+        return dropped;
+    }
+
+    public void setClock(LoopClock clock) {
+        this.clock = clock;
+        updateTime();
+    }
+
+    public void touch() {
+        lastRead = clock.millis();
+    }
+
+    // Reading from connection or writing to it
+    public long getLastActivity() {
+        return Math.max(time, lastRead);
+    }
+
+    public void dropIfExpired() {
+        if (!lossless && hasData() && !isValidByTimeout()) {
+            logger.info("Session buffer is flashed by timeout.");
+            drop();
+        }
+    }
+
+    public void setLatencyRecorder(LatencyRecorder latency) {
+        this.latency = latency;
+    }
+
+    public LatencyRecorder getLatencyRecorder() {
+        return latency;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public BasicSession getPeer() {
+        return peer;
+    }
+
+    public void setPeer(BasicSession peer) {
+        this.peer = peer;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void setChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    public void setBufferPool(BufferPool pool) {
+        if (this.pool == pool) {
+            return;
+        }
+
+        // Buffers go back to the pool they were taken from
+        release();
+        this.pool = pool;
+        buffer = pool.acquire(bufferSize);
+    }
+
     public Session() {
         init(512, 2000, 5000);
     }
@@ -71,36 +263,135 @@ public class Session implements BasicSession {
         setTimeout(timeout);
         setPort(port);
 
-        buffer = ByteBuffer.allocate(bufferSize);
+        // Session may be reinitialized, previous buffers are returned to the pool
+        release();
+        buffer = pool.acquire(bufferSize);
         time = System.currentTimeMillis();
     }
 
+    public ByteBuffer getReadBuffer() {
+        // Raw session reuses one large buffer, reads are not sized
+        if (raw) {
+            if (readBuffer == null) {
+                readBuffer = pool.acquire(RAW_READ_SIZE);
+            }
+            return readBuffer;
+        }
+
+        // Lossy session never keeps more than its buffer size, so reads are not larger either
+        if (recv == null) {
+            recv = new RecvSizer(bufferSize, lossless ? RecvSizer.MAX_SIZE : bufferSize);
+        }
+
+        // Empty buffer of an outdated size is swapped for one of the guessed size
+        if (readBuffer != null && readBuffer.position() == 0 && readBuffer.capacity() != recv.guess()) {
+            releaseChunk(readBuffer);
+            readBuffer = null;
+        }
+
+        if (readBuffer == null) {
+            readBuffer = pool.acquire(recv.guess());
+        }
+
+        return readBuffer;
+    }
+
+    public void recordRead(int bytes) {
+        if (recv != null && bytes >= 0) {
+            recv.record(bytes);
+        }
+    }
+
+    public ByteBuffer takeReadBuffer() {
+        // Taken buffer is flipped already, so it must not be mistaken for an empty one and swapped
+        ByteBuffer taken = readBuffer != null ? readBuffer : getReadBuffer();
+        readBuffer = null;
+        return taken;
+    }
+
+    public void enqueue(ByteBuffer chunk) {
+        enqueue(chunk, System.nanoTime());
+    }
+
+    public void enqueue(ByteBuffer chunk, long readAt) {
+        assert (chunk.remaining() > 0);
+
+        if (!lossless) {
+            if (!isValidByTimeout()) {
+                drop();
+                logger.info("Session buffer is flashed by timeout on writing operation.");
+            }
+
+            if (chunk.remaining() > bufferSize - getQueuedBytes()) {
+                drop();
+                logger.info("Session buffer has no space for incoming message.\nBuffer will be flashed.");
+            }
+        }
+
+        queue.addLast(chunk);
+        queuedBytes += chunk.remaining();
+        times.addLast(readAt, (latency != null) ? System.nanoTime() : readAt);
+        updateTime();
+    }
+
+    public void release() {
+        cleanUpQueue();
+
+        if (readBuffer != null) {
+            releaseChunk(readBuffer);
+            readBuffer = null;
+        }
+
+        if (buffer != null && buffer != RELEASED) {
+            releaseChunk(buffer);
+            buffer = RELEASED;
+        }
+    }
+
     public boolean hasData() {
-        return buffer.position() > 0;
+        return buffer.position() > 0 || !queue.isEmpty();
     }
 
     public void write(ByteBuffer buffer) {
         assert (buffer.remaining() > 0);
 
-        if (buffer.capacity() > this.buffer.capacity()) {
-            reset(getNearestPower2(buffer.capacity()));
+        append((ByteBuffer) buffer.rewind());
+    }
+
+    public void append(ByteBuffer buffer) {
+        assert (buffer.remaining() > 0);
+
+        if (lossless) {
+            if (getFreeSpace() < buffer.remaining()) {
+                grow(this.buffer.position() + buffer.remaining());
+            }
+
+            this.buffer.put(buffer);
+            updateTime();
+            return;
+        }
+
+        if (buffer.remaining() > bufferSize) {
+            reset(getNearestPower2(buffer.remaining()));
 
             logger.warning("Session received too much data to store.\n" +
                     "\tCurrent buffer size " + getBufferSize() + " bytes. Received " +
-                    buffer.capacity() + ".\n\tReallocating buffer with size " + getNearestPower2(buffer.capacity()));
+                    buffer.remaining() + ".\n\tReallocating buffer with size " + getNearestPower2(buffer.remaining()));
         }
 
         if (!isValidByTimeout()) {
+            droppedBytes += this.buffer.position();
             cleanUpBuffer();
             logger.info("Session buffer is flashed by timeout on writing operation.");
         }
 
-        if (this.buffer.remaining() < buffer.remaining()) {
+        if (getFreeSpace() < buffer.remaining()) {
+            droppedBytes += this.buffer.position();
             cleanUpBuffer();
             logger.info("Session buffer has no space for incoming message.\nBuffer will be flashed.");
         }
 
-        this.buffer.put((ByteBuffer) buffer.rewind());
+        this.buffer.put(buffer);
         updateTime();
     }
 
@@ -122,6 +413,13 @@ public class Session implements BasicSession {
             res.append(" ");
         }
 
+        for (ByteBuffer chunk : queue) {
+            for (int i = chunk.position(); i < chunk.limit(); i++) {
+                res.append(Integer.toString((int)chunk.get(i) & 0xFF, 16));
+                res.append(" ");
+            }
+        }
+
         return res.toString().trim();
     }
 
@@ -130,27 +428,134 @@ public class Session implements BasicSession {
 //        System.out.println(toString());
         // END DEBUG
         assert (target != null);
-        assert (target.remaining() >= buffer.position());
+        assert (target.remaining() >= getQueuedBytes());
         // If timeout clear buffer
         if (!this.isValidByTimeout()) {
             logger.info("Session buffer is flashed by timeout on reading operation.");
-            cleanUpBuffer();
+            drop();
         }
 
-        int position = buffer.position();
-        buffer.rewind();
+        buffer.flip();
+        target.put(buffer);
 
-        while (buffer.position() < position) {
-            target.put(buffer.get());
+        for (ByteBuffer chunk : queue) {
+            target.put(chunk);
         }
 
         cleanUpBuffer();
+        cleanUpQueue();
         updateTime();
         // DEBUG PURPOSE ONLY
 //        System.out.println(toString());
         // END DEBUG
     }
 
+    public int flushTo(WritableByteChannel channel) throws IOException {
+        if (!lossless && !this.isValidByTimeout()) {
+            logger.info("Session buffer is flashed by timeout on reading operation.");
+            drop();
+            return 0;
+        }
+
+        // Several queued buffers go to the socket in one system call
+        if (channel instanceof GatheringByteChannel && !queue.isEmpty()) {
+            int written = gatherTo((GatheringByteChannel) channel);
+            updateTime();
+            return written;
+        }
+
+        // Write straight from the outbound buffer, whatever channel did not take stays queued
+        buffer.flip();
+        int written = channel.write(buffer);
+        boolean drained = !buffer.hasRemaining();
+        buffer.compact();
+
+        // Queued chunks are written as they are, emptied chunks go back to the pool
+        while (drained && !queue.isEmpty()) {
+            ByteBuffer chunk = queue.peekFirst();
+            int bytes = channel.write(chunk);
+            written += bytes;
+            queuedBytes -= bytes;
+
+            if (chunk.hasRemaining()) {
+                break;
+            }
+
+            releaseChunk(queue.pollFirst());
+            recordWritten();
+        }
+
+        updateTime();
+        return written;
+    }
+
+    private int gatherTo(GatheringByteChannel channel) throws IOException {
+        if (gather == null) {
+            gather = new ByteBuffer[MAX_GATHER];
+        }
+
+        int written = 0;
+        buffer.flip();
+
+        try {
+            while (true) {
+                // Outbound buffer goes first, then chunks in queue order
+                int count = 0;
+                long offered = 0;
+                if (buffer.hasRemaining()) {
+                    gather[count++] = buffer;
+                    offered += buffer.remaining();
+                }
+
+                for (ByteBuffer chunk : queue) {
+                    if (count == gather.length) {
+                        break;
+                    }
+
+                    gather[count++] = chunk;
+                    offered += chunk.remaining();
+                }
+
+                if (count == 0) {
+                    break;
+                }
+
+                int pending = buffer.remaining();
+                long bytes = channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+
+                written += bytes;
+                queuedBytes -= bytes - (pending - buffer.remaining());
+
+                // Emptied chunks go back to the pool, a partly written one stays at the head
+                while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+                    releaseChunk(queue.pollFirst());
+                    recordWritten();
+                }
+
+                // Socket is full, the rest waits for the next write event
+                if (bytes < offered || queue.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+
+        return written;
+    }
+
+    // Chunk at head of the queue is written completely
+    private void recordWritten() {
+        if (latency != null) {
+            long now = System.nanoTime();
+            latency.recordDwell(now - times.firstReadAt());
+            latency.recordQueueTime(now - times.firstEnqueuedAt());
+        }
+
+        times.removeFirst();
+    }
+
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("buffer size:      " + bufferSize + "\n");
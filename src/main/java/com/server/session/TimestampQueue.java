@@ -0,0 +1,57 @@
+package com.server.session;
+
+/**
+ * Ring of timestamp pairs kept alongside the chunk queue of a session, one pair per chunk:
+ * when chunk data was read and when the chunk was queued. Grows as needed, never shrinks.
+ */
+final class TimestampQueue {
+    private long[] times = new long[32];
+    private int head = 0;
+    private int size = 0;
+
+    void addLast(long readAt, long enqueuedAt) {
+        if (size * 2 == times.length) {
+            grow();
+        }
+
+        int tail = (head + size * 2) & (times.length - 1);
+        times[tail] = readAt;
+        times[tail + 1] = enqueuedAt;
+        size++;
+    }
+
+    long firstReadAt() {
+        assert (size > 0);
+        return times[head];
+    }
+
+    long firstEnqueuedAt() {
+        assert (size > 0);
+        return times[head + 1];
+    }
+
+    void removeFirst() {
+        assert (size > 0);
+        head = (head + 2) & (times.length - 1);
+        size--;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        long[] grown = new long[times.length * 2];
+        for (int i = 0; i < size * 2; i++) {
+            grown[i] = times[(head + i) & (times.length - 1)];
+        }
+
+        times = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,11 @@
+package com.server.status;
+
+/**
+ * Status of a rule with latency percentiles of its traffic.
+ * Dwell is the time from reading data until its last byte is written to the peer,
+ * queue time is the part of it data spends queued in the peer session.
+ */
+public interface ILatencyStatus extends IStatus {
+    LatencySnapshot getDwellLatency();
+    LatencySnapshot getQueueLatency();
+}
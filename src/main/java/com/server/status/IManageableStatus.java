@@ -1,11 +1,13 @@
 package com.server.status;
 
 import java.time.LocalDateTime;
-import java.util.Date;
 
-public interface IManageableStatus extends IStatus {
-    void setSent(int sent);
-    void setRecv(int recv);
+public interface IManageableStatus extends IStatus, LatencyRecorder {
+    void addSent(long bytes);
+    void addRecv(long bytes);
+    void addAccept();
+    void addDrops(long bytes);
     void setConnected(boolean connected);
     void setLastTimeConnected(LocalDateTime lastTimeConnected);
+    boolean takeChanged();
 }
@@ -1,13 +1,17 @@
 package com.server.status;
 
 import java.time.LocalDateTime;
-import java.util.Date;
 import java.util.Map;
 
 public interface IStatus {
-    int getSent();
-    int getRecv();
+    long getSent();
+    long getRecv();
+    long getMessagesSent();
+    long getMessagesRecv();
+    long getAccepts();
+    long getDrops();
     boolean isConnected();
     LocalDateTime getLastTimeConnected();
     Map.Entry<Integer, Integer> getRule();
+    StatusSnapshot snapshot();
 }
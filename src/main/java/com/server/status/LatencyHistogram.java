@@ -0,0 +1,133 @@
+package com.server.status;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of durations in nanoseconds, laid out like HdrHistogram: values are grouped
+ * by their highest bit and every group is split into linear sub-buckets, 16 by default. Any value from
+ * 0 to Long.MAX_VALUE is recorded with a relative error below one sub-bucket, recording is a single
+ * atomic increment. Default precision keeps a histogram under 8 KB, every rule has two of them.
+ */
+public class LatencyHistogram {
+    static final int DEFAULT_SUB_BUCKET_BITS = 4;
+
+    private final int subBucketBits;
+    private final int subBuckets;
+    private final AtomicLongArray counts;
+    private final AtomicLong max = new AtomicLong();
+
+    // Snapshot is taken again only if values were recorded since the previous one
+    private volatile boolean changed = false;
+    private LatencySnapshot last = LatencySnapshot.EMPTY;
+
+    public LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param subBucketBits log2 of sub-buckets per power of two, relative error is below 1 / 2^subBucketBits
+     */
+    public LatencyHistogram(int subBucketBits) {
+        assert (subBucketBits > 0 && subBucketBits < 16);
+
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+        // Values below 2 * subBuckets are counted exactly, every further power of two adds subBuckets buckets
+        this.counts = new AtomicLongArray((63 - subBucketBits) * subBuckets + 2 * subBuckets);
+    }
+
+    int indexOf(long value) {
+        if (value < 2 * subBuckets) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return shift * subBuckets + (int) (value >>> shift);
+    }
+
+    // Highest value counted in the bucket
+    long valueOf(int index) {
+        if (index < 2 * subBuckets) {
+            return index;
+        }
+
+        int shift = index / subBuckets - 1;
+        long lowest = (long) (index % subBuckets + subBuckets) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        counts.incrementAndGet(indexOf(nanos));
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+
+        // Flag is written only when not set yet, like the changed mark of a status
+        if (!changed) {
+            changed = true;
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Copies bucket counts once and computes the reported percentiles from that copy. Histogram with
+     * nothing recorded since the previous call returns the previous snapshot without a copy. A value
+     * recorded during the call either is in the copy or marks the histogram changed again.
+     */
+    public synchronized LatencySnapshot snapshot() {
+        if (!changed) {
+            return last;
+        }
+        changed = false;
+
+        long[] copy = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+
+        long max = this.max.get();
+        LatencySnapshot snapshot = new LatencySnapshot(count, percentile(copy, count, 50.0, max),
+                percentile(copy, count, 99.0, max), percentile(copy, count, 99.9, max), max);
+        last = snapshot;
+        return snapshot;
+    }
+
+    private long percentile(long[] counts, long count, double percentile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Bucket bound may lie above the largest recorded value
+                return Math.min(valueOf(i), max);
+            }
+        }
+
+        return max;
+    }
+}
@@ -0,0 +1,6 @@
+package com.server.status;
+
+public interface LatencyRecorder {
+    void recordDwell(long nanos);
+    void recordQueueTime(long nanos);
+}
@@ -0,0 +1,47 @@
+package com.server.status;
+
+/**
+ * Percentiles of a latency histogram at some moment, in nanoseconds.
+ */
+public final class LatencySnapshot {
+    public static final LatencySnapshot EMPTY = new LatencySnapshot(0, 0, 0, 0, 0);
+
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    public LatencySnapshot(long count, long p50, long p99, long p999, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public String toString() {
+        return String.format("p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus (%d)",
+                p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0, count);
+    }
+}
@@ -2,32 +2,95 @@ package com.server.status;
 
 import java.time.LocalDateTime;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
-public class Status implements IStatus, IManageableStatus {
+/**
+ * Live status of a rule. Counters are 64 bit adders, so reactor threads update them without
+ * contention while other threads read them. Readers that go over the values more than once take
+ * a copy with {@link #snapshot()}. Every update marks the status as changed, so watchers like
+ * {@link StatusFeed} pick only the rules that moved since they last looked.
+ */
+public class Status implements IStatus, IManageableStatus, ILatencyStatus {
     private final Map.Entry<Integer, Integer> rule;
-    private int sent;
-    private int recv;
-    private boolean connected;
-    private LocalDateTime lastTimeConnected;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder recv = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesRecv = new LongAdder();
+    private final LongAdder accepts = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final LatencyHistogram dwell = new LatencyHistogram();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private volatile boolean connected;
+    private volatile LocalDateTime lastTimeConnected;
+    // New statuses are reported once, so watchers learn about added rules
+    private volatile boolean changed = true;
 
     public Status(Map.Entry<Integer, Integer> rule) {
         this.rule = rule;
     }
 
-    public int getSent() {
-        return sent;
+    public long getSent() {
+        return sent.sum();
     }
 
-    public void setSent(int sent) {
-        this.sent = sent;
+    public void addSent(long bytes) {
+        sent.add(bytes);
+        messagesSent.increment();
+        markChanged();
     }
 
-    public int getRecv() {
-        return recv;
+    public long getRecv() {
+        return recv.sum();
     }
 
-    public void setRecv(int recv) {
-        this.recv = recv;
+    public void addRecv(long bytes) {
+        recv.add(bytes);
+        messagesRecv.increment();
+        markChanged();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    public long getMessagesRecv() {
+        return messagesRecv.sum();
+    }
+
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    public void addAccept() {
+        accepts.increment();
+        markChanged();
+    }
+
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    public void addDrops(long bytes) {
+        drops.add(bytes);
+        markChanged();
+    }
+
+    public void recordDwell(long nanos) {
+        dwell.record(nanos);
+        markChanged();
+    }
+
+    public void recordQueueTime(long nanos) {
+        queueTime.record(nanos);
+        markChanged();
+    }
+
+    public LatencySnapshot getDwellLatency() {
+        return dwell.snapshot();
+    }
+
+    public LatencySnapshot getQueueLatency() {
+        return queueTime.snapshot();
     }
 
     public boolean isConnected() {
@@ -36,6 +99,7 @@ public class Status implements IStatus, IManageableStatus {
 
     public void setConnected(boolean connected) {
         this.connected = connected;
+        markChanged();
     }
 
     public LocalDateTime getLastTimeConnected() {
@@ -44,9 +108,43 @@ public class Status implements IStatus, IManageableStatus {
 
     public void setLastTimeConnected(LocalDateTime lastTimeConnected) {
         this.lastTimeConnected = lastTimeConnected;
+        markChanged();
+    }
+
+    // Flag is written only when not set yet, so a busy rule costs one volatile read per update
+    private void markChanged() {
+        if (!changed) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Clears the changed mark. An update racing with the call either is seen by a snapshot taken
+     * after it or marks the status again.
+     *
+     * @return true if the status was updated since the previous call
+     */
+    public boolean takeChanged() {
+        if (!changed) {
+            return false;
+        }
+
+        changed = false;
+        return true;
     }
 
     public Map.Entry<Integer, Integer> getRule() {
         return rule;
     }
+
+    /**
+     * Copies values one after another without stopping writers, so the copy is not taken at a single
+     * moment and its values need not agree with each other: bytes may include a read that message
+     * counters do not yet, and connected may change in between. Every value is exact for some moment
+     * during the call and never goes back between subsequent copies.
+     */
+    public StatusSnapshot snapshot() {
+        return new StatusSnapshot(rule, sent.sum(), recv.sum(), messagesSent.sum(), messagesRecv.sum(),
+                accepts.sum(), drops.sum(), connected, lastTimeConnected, dwell.snapshot(), queueTime.snapshot());
+    }
 }
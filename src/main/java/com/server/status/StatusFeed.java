@@ -0,0 +1,119 @@
+package com.server.status;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rate limited stream of status changes. Once per period the feed collects statuses marked as changed
+ * and hands their snapshots to listeners in one call, so any number of updates of a rule within
+ * a period is coalesced into a single event and quiet rules cost nothing downstream.
+ */
+public class StatusFeed {
+    private static final Logger logger = Logger.getLogger(StatusFeed.class.getName());
+
+    private final Supplier<List<IStatus>> statuses;
+    private final long periodMillis;
+    private final List<StatusListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Statuses reported so far by first port, touched by the feed thread only
+    private final Map<Integer, IStatus> known = new HashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    public StatusFeed(Supplier<List<IStatus>> statuses, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Feed period must be positive, got " + periodMillis + ".");
+        }
+
+        this.statuses = statuses;
+        this.periodMillis = periodMillis;
+    }
+
+    public void addListener(StatusListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StatusListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "status-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::publish, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        executor = null;
+    }
+
+    private void publish() {
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            // Thrown out of a scheduled task it would cancel the feed for good
+            logger.log(Level.WARNING, "Unable to publish status changes.", e);
+        }
+    }
+
+    /**
+     * Collects changes since the previous poll and notifies listeners if there are any. Called by
+     * the feed thread, tests call it directly instead of starting the feed.
+     */
+    void poll() {
+        List<StatusSnapshot> changed = new ArrayList<>();
+        Map<Integer, IStatus> current = new HashMap<>();
+
+        for (IStatus status : statuses.get()) {
+            int port = status.getRule().getKey();
+            current.put(port, status);
+
+            // A status replaced by a new one for the same rule is reported as changed
+            boolean fresh = known.put(port, status) != status;
+            if (takeChanged(status) || fresh) {
+                changed.add(status.snapshot());
+            }
+        }
+
+        List<Map.Entry<Integer, Integer>> removed = new ArrayList<>();
+        Iterator<Map.Entry<Integer, IStatus>> it = known.entrySet().iterator();
+        while (it.hasNext()) {
+            IStatus status = it.next().getValue();
+            if (!current.containsKey(status.getRule().getKey())) {
+                removed.add(status.getRule());
+                it.remove();
+            }
+        }
+
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        for (StatusListener listener : listeners) {
+            listener.statusesChanged(changed, removed);
+        }
+    }
+
+    // Statuses that do not track changes are reported on every poll
+    private static boolean takeChanged(IStatus status) {
+        return !(status instanceof IManageableStatus) || ((IManageableStatus) status).takeChanged();
+    }
+}
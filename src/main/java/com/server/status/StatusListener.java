@@ -0,0 +1,14 @@
+package com.server.status;
+
+import java.util.List;
+import java.util.Map;
+
+public interface StatusListener {
+    /**
+     * Called by the feed thread at most once per feed period and only when something changed.
+     *
+     * @param changed snapshots of rules updated or added since the previous call
+     * @param removed rules whose statuses are gone since the previous call
+     */
+    void statusesChanged(List<StatusSnapshot> changed, List<Map.Entry<Integer, Integer>> removed);
+}
@@ -0,0 +1,86 @@
+package com.server.status;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * Immutable copy of a rule status, safe to pass between threads and to read field by field. Values are
+ * copied one by one while the rule forwards, see {@link Status#snapshot()} for what they guarantee.
+ */
+public final class StatusSnapshot implements IStatus, ILatencyStatus {
+    private final Map.Entry<Integer, Integer> rule;
+    private final long sent;
+    private final long recv;
+    private final long messagesSent;
+    private final long messagesRecv;
+    private final long accepts;
+    private final long drops;
+    private final boolean connected;
+    private final LocalDateTime lastTimeConnected;
+    private final LatencySnapshot dwell;
+    private final LatencySnapshot queueTime;
+
+    public StatusSnapshot(Map.Entry<Integer, Integer> rule, long sent, long recv, long messagesSent,
+                          long messagesRecv, long accepts, long drops, boolean connected,
+                          LocalDateTime lastTimeConnected, LatencySnapshot dwell, LatencySnapshot queueTime) {
+        this.rule = rule;
+        this.sent = sent;
+        this.recv = recv;
+        this.messagesSent = messagesSent;
+        this.messagesRecv = messagesRecv;
+        this.accepts = accepts;
+        this.drops = drops;
+        this.connected = connected;
+        this.lastTimeConnected = lastTimeConnected;
+        this.dwell = dwell;
+        this.queueTime = queueTime;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getRecv() {
+        return recv;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    public long getMessagesRecv() {
+        return messagesRecv;
+    }
+
+    public long getAccepts() {
+        return accepts;
+    }
+
+    public long getDrops() {
+        return drops;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public LocalDateTime getLastTimeConnected() {
+        return lastTimeConnected;
+    }
+
+    public LatencySnapshot getDwellLatency() {
+        return dwell;
+    }
+
+    public LatencySnapshot getQueueLatency() {
+        return queueTime;
+    }
+
+    public Map.Entry<Integer, Integer> getRule() {
+        return rule;
+    }
+
+    public StatusSnapshot snapshot() {
+        return this;
+    }
+}
@@ -0,0 +1,28 @@
+package com.server.timer;
+
+/**
+ * Wall clock read once per loop iteration. Everything handled in one iteration sees the same time,
+ * so bookkeeping on the forwarding path does not call into the system clock.
+ */
+public class LoopClock {
+    /**
+     * Clock for code running outside of an event loop, reads system time on every call.
+     */
+    public static final LoopClock SYSTEM = new LoopClock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private long now = System.currentTimeMillis();
+
+    public long millis() {
+        return now;
+    }
+
+    public long update() {
+        now = System.currentTimeMillis();
+        return now;
+    }
+}
@@ -0,0 +1,163 @@
+package com.server.timer;
+
+/**
+ * Hashed timing wheel owned by a single event loop. Timeouts are kept in per-slot intrusive lists,
+ * so scheduling and cancelling are O(1) and allocate nothing. Deadlines further than one revolution
+ * stay in their slot and are skipped until their turn comes.
+ */
+public class TimingWheel {
+
+    /**
+     * Entry of the wheel. Subclasses decide what happens when the deadline passes.
+     */
+    public abstract static class Timeout {
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+        private int slot = IDLE;
+
+        // Chain of timeouts due in current advance
+        private Timeout pending;
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        protected abstract void expire(long now);
+    }
+
+    private static final int IDLE = -1;
+    private static final int PENDING = -2;
+
+    private final Timeout[] slots;
+    private final int mask;
+    private final long tickMillis;
+    private long tick;
+    private int size = 0;
+
+    public TimingWheel(int slots, long tickMillis, long now) {
+        assert (Integer.bitCount(slots) == 1 && tickMillis > 0);
+
+        this.slots = new Timeout[slots];
+        this.mask = slots - 1;
+        this.tickMillis = tickMillis;
+        this.tick = now / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void schedule(Timeout timeout, long deadline) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+
+        // Passed deadlines expire on the next tick
+        long target = Math.max(deadline / tickMillis, tick);
+        timeout.deadline = deadline;
+        timeout.slot = (int) (target & mask);
+
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[timeout.slot] = timeout;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        } else {
+            timeout.slot = IDLE;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = IDLE;
+        size--;
+    }
+
+    /**
+     * Expires every timeout with deadline not later than now. Timeouts may schedule or cancel
+     * any timeout, including themselves, while they expire.
+     *
+     * @return number of expired timeouts
+     */
+    public int advance(long now) {
+        long last = now / tickMillis;
+
+        // After a long pause one revolution visits every slot
+        if (last - tick >= slots.length) {
+            tick = last - slots.length + 1;
+        }
+
+        // Due timeouts are taken out in visiting order first, expiring one may change the lists
+        Timeout due = null;
+        Timeout dueTail = null;
+        for (; tick <= last; tick++) {
+            Timeout timeout = slots[(int) (tick & mask)];
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    timeout.slot = PENDING;
+                    if (dueTail == null) {
+                        due = timeout;
+                    } else {
+                        dueTail.pending = timeout;
+                    }
+                    dueTail = timeout;
+                }
+
+                timeout = next;
+            }
+        }
+
+        // Current tick stays open for deadlines scheduled later in it
+        tick = last;
+
+        int expired = 0;
+        while (due != null) {
+            Timeout timeout = due;
+            due = timeout.pending;
+            timeout.pending = null;
+
+            // Skip timeouts cancelled or rescheduled by an earlier one
+            if (timeout.slot == PENDING) {
+                timeout.slot = IDLE;
+                timeout.expire(now);
+                expired++;
+            }
+        }
+
+        return expired;
+    }
+}
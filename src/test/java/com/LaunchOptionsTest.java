@@ -0,0 +1,46 @@
+package com;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LaunchOptionsTest {
+
+    @Test
+    public void whenNoArgumentsAreGivenThenDefaultsAreUsed() throws Exception {
+        LaunchOptions options = LaunchOptions.parse(new String[0]);
+
+        assertFalse(options.isHeadless());
+        assertEquals("config/config.json", options.getConfigPath());
+        assertEquals(4096, options.getBufferSize());
+    }
+
+    @Test
+    public void whenOptionsAreGivenThenBothFormsAreParsed() throws Exception {
+        LaunchOptions options = LaunchOptions.parse(new String[]{
+                "--headless", "--config", "/etc/tunnel.json", "--threads=2", "--buffer-size", "16384",
+                "--startup-timeout=3000", "--drain-timeout", "1000"});
+
+        assertTrue(options.isHeadless());
+        assertEquals("/etc/tunnel.json", options.getConfigPath());
+        assertEquals(2, options.getThreads());
+        assertEquals(16384, options.getBufferSize());
+        assertEquals(3000, options.getStartupTimeout());
+        assertEquals(1000, options.getDrainTimeout());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void whenOptionIsUnknownThenExceptionIsThrown() throws Exception {
+        LaunchOptions.parse(new String[]{"--port", "5000"});
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void whenNumberIsNotPositiveThenExceptionIsThrown() throws Exception {
+        LaunchOptions.parse(new String[]{"--threads", "0"});
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void whenValueIsMissingThenExceptionIsThrown() throws Exception {
+        LaunchOptions.parse(new String[]{"--config"});
+    }
+}
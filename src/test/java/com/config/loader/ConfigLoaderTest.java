@@ -2,6 +2,7 @@ package com.config.loader;
 
 import com.server.portpool.ManageablePortPool;
 import com.server.portpool.PortPool;
+import com.server.portpool.RuleOptions;
 import org.junit.Test;
 
 import java.io.FileWriter;
@@ -12,6 +13,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ConfigLoaderTest {
     private Map<Integer, Integer> expected;
@@ -64,7 +66,46 @@ public class ConfigLoaderTest {
 
         String actual = new String(Files.readAllBytes(Paths.get("target/classes/config/save_config.json")));
 
-        assertEquals("{\"rules\":[[4432,1234],[5000,5001]],\"timeout\":2000}", actual);
+        assertEquals("{\"rules\":[[5000,5001],[1234,4432]],\"timeout\":2000}", actual);
+
+        // clear save_config.json
+        FileWriter file = new FileWriter("target/classes/config/save_config.json");
+        file.write("{}");
+        file.close();
+    }
+
+    @Test
+    public void whenRuleHasOptionsThenTheyAreParsed() throws Exception {
+        loader.parse("target/classes/config/rule_options_config.json");
+
+        Map<Integer, Integer> rules = new HashMap<>();
+        rules.put(5000, 5001);
+        rules.put(5002, 5003);
+        assertEquals(rules, loader.getRules());
+
+        Map<Integer, RuleOptions> options = new HashMap<>();
+        options.put(5000, RuleOptions.builder().tcpNoDelay(true).keepAlive(true).linger(0).build());
+        assertEquals(options, loader.getRuleOptions());
+    }
+
+    @Test
+    public void whenSavingRuleWithOptionsThenOnlyChangedOptionsAreStored() throws Exception {
+        ManageablePortPool pool = new PortPool();
+
+        pool.addRule(5000, 5001, RuleOptions.builder().sendBufferSize(65536).backlog(1024).raw(true)
+                .capture("capture/5000.ring").build());
+        pool.addRule(1234, 4432);
+
+        loader.save(pool, 2000, "target/classes/config/save_config.json");
+
+        String actual = new String(Files.readAllBytes(Paths.get("target/classes/config/save_config.json")));
+
+        loader.parse("target/classes/config/save_config.json");
+        assertEquals(RuleOptions.builder().sendBufferSize(65536).backlog(1024).raw(true)
+                .capture("capture/5000.ring").build(),
+                loader.getRuleOptions().get(5000));
+        assertEquals(1, loader.getRuleOptions().size());
+        assertTrue(actual.contains("[1234,4432]"));
 
         // clear save_config.json
         FileWriter file = new FileWriter("target/classes/config/save_config.json");
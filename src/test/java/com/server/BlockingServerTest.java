@@ -0,0 +1,223 @@
+package com.server;
+
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BlockingServerTest {
+    private BlockingServer server;
+    private ManageablePortPool pool;
+    private Thread serve;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new BlockingServer();
+        pool = new PortPool();
+    }
+
+    private void startServer() throws InterruptedException {
+        serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void whenPairIsConnectedThenDataIsForwardedBothWays() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+        startServer();
+
+        Socket first = new Socket("localhost", 5000);
+        Socket second = new Socket("localhost", 5001);
+        first.setSoTimeout(2000);
+        second.setSoTimeout(2000);
+
+        new PrintWriter(first.getOutputStream(), true).println("there");
+        assertEquals("there", new BufferedReader(new InputStreamReader(second.getInputStream())).readLine());
+
+        new PrintWriter(second.getOutputStream(), true).println("back");
+        assertEquals("back", new BufferedReader(new InputStreamReader(first.getInputStream())).readLine());
+
+        // Copy loops count bytes once they are written
+        Thread.sleep(50);
+        assertTrue(server.getStatus(5000).isConnected());
+        assertEquals(6, server.getStatus(5000).getSent());
+        assertEquals(5, server.getStatus(5000).getRecv());
+
+        // Closing one side closes its pair
+        first.close();
+        assertEquals(-1, second.getInputStream().read());
+        second.close();
+    }
+
+    @Test
+    public void whenPortOfRuleIsBusyThenStartIsReportedAsFailed() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+
+        try (ServerSocket busy = new ServerSocket(5001)) {
+            serve = new Thread(server);
+            serve.start();
+
+            assertFalse(server.awaitStarted(2000));
+        }
+    }
+
+    @Test
+    public void whenSenderConnectsFirstThenDataWaitsForReceiver() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(1024, pool);
+        startServer();
+
+        final byte[] payload = new byte[1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        final Socket sender = new Socket("localhost", 5000);
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(payload);
+                sender.getOutputStream().flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+        Thread.sleep(200);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(5000);
+
+        byte[] received = new byte[payload.length];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+        assertTrue(Arrays.equals(payload, received));
+
+        writer.join(1000);
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void whenWaitingConnectionIsClosedThenNextOneIsPairedInstead() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+        startServer();
+
+        new Socket("localhost", 5000).close();
+        Thread.sleep(50);
+
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+        Socket sender = new Socket("localhost", 5000);
+
+        new PrintWriter(sender.getOutputStream(), true).println("alive");
+        assertEquals("alive", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void whenWaitingConnectionSentDataAndClosedThenDataIsDelivered() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+        startServer();
+
+        Socket sender = new Socket("localhost", 5000);
+        new PrintWriter(sender.getOutputStream(), true).println("last words");
+        sender.close();
+        Thread.sleep(50);
+
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(receiver.getInputStream()));
+        assertEquals("last words", reader.readLine());
+        assertNull(reader.readLine());
+
+        receiver.close();
+    }
+
+    @Test
+    public void whenRulesAreAppliedThenRemovedPortIsClosedAndAddedPortForwards() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+        startServer();
+
+        Map<Integer, Integer> rules = new HashMap<>();
+        rules.put(5002, 5003);
+        server.applyRules(rules);
+
+        assertNull(server.getStatus(5000));
+        assertNotNull(server.getStatus(5002));
+
+        try {
+            new Socket("localhost", 5000).close();
+            fail("Port of removed rule still accepts connections");
+        } catch (ConnectException e) {
+            // expected
+        }
+
+        Socket sender = new Socket("localhost", 5002);
+        Socket receiver = new Socket("localhost", 5003);
+        receiver.setSoTimeout(2000);
+
+        new PrintWriter(sender.getOutputStream(), true).println("added");
+        assertEquals("added", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void whenOneOfPairsOfRuleIsClosedThenRuleStaysConnected() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, pool);
+        startServer();
+
+        Socket firstA = new Socket("localhost", 5000);
+        Socket secondA = new Socket("localhost", 5001);
+        Thread.sleep(100);
+        Socket firstB = new Socket("localhost", 5000);
+        Socket secondB = new Socket("localhost", 5001);
+        secondB.setSoTimeout(2000);
+
+        new PrintWriter(firstB.getOutputStream(), true).println("second pair");
+        assertEquals("second pair", new BufferedReader(new InputStreamReader(secondB.getInputStream())).readLine());
+
+        firstA.close();
+        secondA.close();
+        Thread.sleep(100);
+        assertTrue(server.getStatus(5000).isConnected());
+
+        firstB.close();
+        secondB.close();
+        Thread.sleep(100);
+        assertFalse(server.getStatus(5000).isConnected());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        if (serve != null) {
+            serve.join(2000);
+        }
+    }
+}
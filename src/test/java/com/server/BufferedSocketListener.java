@@ -0,0 +1,47 @@
+package com.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+class BufferedSocketListener extends SocketListener {
+    BufferedSocketListener(Socket socket) {
+        super(socket);
+        try {
+            socket.setSoTimeout(100);
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        String line;
+        try {
+            assert in != null;
+            while ((line = in.readLine()) != null) {
+                sb.append(line).append("\n");
+                System.out.println("Appending line: " + line);
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("No more data available after timeout.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        this.data = sb.toString();
+
+    }
+}
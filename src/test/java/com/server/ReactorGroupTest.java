@@ -0,0 +1,278 @@
+package com.server;
+
+import com.server.buffer.BufferPool;
+import com.server.pairing.FifoPairing;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import com.server.portpool.RuleOptions;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class ReactorGroupTest {
+    private ReactorGroup group;
+    private ManageablePortPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new ReactorGroup();
+        pool = new PortPool();
+    }
+
+    @Test
+    public void whenInitializingThenRequestedLoopsAreCreatedWhateverTheRulesCount() throws Exception {
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+        group.init(4096, 2000, pool, 8);
+
+        assertEquals(8, group.getThreads());
+        assertEquals(4096, group.getBufferSize());
+        assertEquals(2000, group.getTimeout());
+    }
+
+    @Test
+    public void whenPairsAreShardedThenEachPairForwardsData() throws Exception {
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+        group.init(4096, 2000, pool, 2);
+
+        Thread serve = new Thread(group);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket senderA = new Socket("localhost", 5000);
+        Socket receiverA = new Socket("localhost", 5001);
+        Socket senderB = new Socket("localhost", 5002);
+        Socket receiverB = new Socket("localhost", 5003);
+
+        // Listeners give up instead of holding their locks forever if data never comes
+        receiverA.setSoTimeout(2000);
+        receiverB.setSoTimeout(2000);
+
+        SocketListener listenerA = new SocketListener(receiverA);
+        SocketListener listenerB = new SocketListener(receiverB);
+
+        synchronized (listenerA) {
+            new Thread(listenerA).start();
+            new Thread(new SocketWriter(senderA, "first", 50)).start();
+            listenerA.wait(2000);
+        }
+
+        synchronized (listenerB) {
+            new Thread(listenerB).start();
+            new Thread(new SocketWriter(senderB, "second", 50)).start();
+            listenerB.wait(2000);
+        }
+
+        assertEquals("first", listenerA.getData());
+        assertEquals("second", listenerB.getData());
+
+        senderA.close();
+        receiverA.close();
+        senderB.close();
+        receiverB.close();
+
+        serve.interrupt();
+        serve.join(2000);
+        group.shutdown();
+    }
+
+    @Test
+    public void whenRulesAreAppliedThenRePointedRuleIsServedOnNewPort() throws Exception {
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+        group.init(4096, 2000, pool, 2);
+
+        Thread serve = new Thread(group);
+        serve.start();
+        Thread.sleep(100);
+
+        Map<Integer, Integer> rules = new HashMap<>();
+        rules.put(5000, 5004);
+        rules.put(5003, 5002);
+        group.applyRules(rules);
+
+        assertNull(group.getStatus(5001));
+        assertNotNull(group.getStatus(5002));
+
+        Socket sender = new Socket("localhost", 5000);
+        Socket receiver = new Socket("localhost", 5004);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("moved");
+        assertEquals("moved", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+        group.shutdown();
+    }
+
+    @Test
+    public void whenRulesAreAddedToGroupStartedWithOneThenTheySpreadOverAllLoops() throws Exception {
+        pool.addRule(5000, 5001);
+        group.init(4096, 2000, pool, 4);
+
+        Thread serve = new Thread(group);
+        serve.start();
+        assertTrue(group.awaitStarted(2000));
+
+        Map<Integer, Integer> rules = new HashMap<>();
+        for (int port = 5000; port < 5008; port += 2) {
+            rules.put(port, port + 1);
+        }
+        group.applyRules(rules);
+
+        assertEquals(Arrays.asList(1, 1, 1, 1), group.getRuleCounts());
+
+        Socket sender = new Socket("localhost", 5006);
+        Socket receiver = new Socket("localhost", 5007);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("added");
+        assertEquals("added", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenRuleReusesPortThenEveryLoopAcceptsAndConnectionsArePaired() throws Exception {
+        pool.addRule(5000, 5001, RuleOptions.builder().reusePort(true).build());
+        group.init(4096, 2000, pool, 4);
+        group.enableMultiConnection(new FifoPairing());
+
+        // Loops are not limited by rules count, the other loops accept for the rule
+        assertEquals(4, group.getThreads());
+
+        Thread serve = new Thread(group);
+        serve.start();
+        Thread.sleep(200);
+
+        int pairs = 32;
+        Socket[] senders = new Socket[pairs];
+        Socket[] receivers = new Socket[pairs];
+        for (int i = 0; i < pairs; i++) {
+            senders[i] = new Socket("localhost", 5000);
+            Thread.sleep(5);
+            receivers[i] = new Socket("localhost", 5001);
+            receivers[i].setSoTimeout(2000);
+            Thread.sleep(5);
+        }
+
+        // Pairing order follows accept order of the owner loop, so every message has to arrive
+        // somewhere exactly once
+        for (int i = 0; i < pairs; i++) {
+            new PrintWriter(senders[i].getOutputStream(), true).println("message");
+        }
+
+        for (int i = 0; i < pairs; i++) {
+            assertEquals("message", new BufferedReader(new InputStreamReader(receivers[i].getInputStream())).readLine());
+        }
+        assertEquals(2 * pairs, group.getStatus(5000).getAccepts());
+
+        for (int i = 0; i < pairs; i++) {
+            senders[i].close();
+            receivers[i].close();
+        }
+
+        serve.interrupt();
+        serve.join(2000);
+        group.shutdown();
+    }
+
+    @Test
+    public void whenGroupWithSharedAcceptsIsStoppedThenItsPortsCanBeBoundAgain() throws Exception {
+        pool.addRule(5000, 5001, RuleOptions.builder().reusePort(true).build());
+        group.init(4096, 2000, pool, 2);
+
+        Thread serve = new Thread(group);
+        serve.start();
+        assertTrue(group.awaitStarted(2000));
+        Thread.sleep(100);
+
+        serve.interrupt();
+        serve.join(2000);
+        assertFalse(serve.isAlive());
+
+        // Sockets without SO_REUSEPORT can not share a port with ones left open by any loop
+        new ServerSocket(5000).close();
+        new ServerSocket(5001).close();
+    }
+
+    @Test
+    public void whenGroupIsStoppedThenBuffersOfOtherLoopsAreNotReportedAsLeaked() throws Exception {
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+        group.init(4096, 2000, pool, 2);
+
+        BufferPool buffers = BufferPool.shared();
+        buffers.setLeakDetection(true);
+        List<LogRecord> reported = new CopyOnWriteArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                reported.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger.getLogger(BufferPool.class.getName()).addHandler(handler);
+
+        try {
+            Thread serve = new Thread(group);
+            serve.start();
+            assertTrue(group.awaitStarted(2000));
+
+            // Connections of both loops hold buffers until their loop stops
+            List<Socket> sockets = new ArrayList<>();
+            for (int port = 5000; port <= 5003; port++) {
+                sockets.add(new Socket("localhost", port));
+            }
+            Thread.sleep(200);
+
+            serve.interrupt();
+            serve.join(2000);
+            assertFalse(serve.isAlive());
+
+            assertEquals(0, buffers.getLeakCount());
+            assertTrue(reported.isEmpty());
+
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } finally {
+            Logger.getLogger(BufferPool.class.getName()).removeHandler(handler);
+            buffers.setLeakDetection(false);
+        }
+    }
+}
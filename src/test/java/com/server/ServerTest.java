@@ -1,7 +1,11 @@
 package com.server;
 
+import com.server.capture.CaptureFrame;
+import com.server.capture.CaptureRing;
+import com.server.pairing.FifoPairing;
 import com.server.portpool.ManageablePortPool;
 import com.server.portpool.PortPool;
+import com.server.portpool.RuleOptions;
 import com.server.session.BasicSession;
 import com.server.session.Session;
 import org.junit.After;
@@ -9,138 +13,30 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
-
-class SocketListener extends Thread {
-
-    final Socket socket;
-    String data;
-
-    SocketListener(Socket socket){
-        this.socket = socket;
-    }
-
-    @Override
-    public void run() {
-        synchronized (this) {
-            // Check if data is on socket
-            BufferedReader in = null;
-
-            try {
-                in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            try {
-                assert in != null;
-
-                data = in.readLine();
-                System.out.println(data);
-                notify();
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-        }
-    }
-
-    String getData() {
-        return data;
-    }
-}
-
-class BufferedSocketListener extends SocketListener {
-    BufferedSocketListener(Socket socket) {
-        super(socket);
-        try {
-            socket.setSoTimeout(100);
-        } catch (SocketException e) {
-            e.printStackTrace();
-        }
-    }
-
-    @Override
-    public void run() {
-        BufferedReader in = null;
-
-        try {
-            in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        StringBuilder sb = new StringBuilder();
-        String line;
-        try {
-            assert in != null;
-            while ((line = in.readLine()) != null) {
-                sb.append(line).append("\n");
-                System.out.println("Appending line: " + line);
-            }
-        } catch (SocketTimeoutException e) {
-            System.out.println("No more data available after timeout.");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        this.data = sb.toString();
-
-    }
-}
-
-class SocketWriter extends Thread {
-
-    private final Socket socket;
-    private final String data;
-    private final long waitFor;
-
-    SocketWriter(Socket socket, String data, long waitForMillis) {
-        this.socket = socket;
-        this.data = data;
-        this.waitFor = waitForMillis;
-    }
-
-    @Override
-    public void run() {
-        PrintWriter out;
-
-        try {
-            Thread.sleep(waitFor);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        try {
-             out = new PrintWriter(socket.getOutputStream(), true);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return;
-        }
-
-        // write data to socket
-        out.println(data);
-        System.out.println("Written \"" + data + "\" to socket.");
-    }
-}
-
 public class ServerTest {
     private Server server;
     private ManageablePortPool pool;
@@ -505,6 +401,468 @@ public class ServerTest {
         serve.interrupt();
     }
 
+    @Test
+    public void whenBackpressureIsEnabledThenDataQueuedForLateReceiverIsNotLost() throws Exception {
+        pool.addRule(5000, 5001);
+        // Small buffers and watermarks make the sender pause many times
+        server.init(16, 2000, pool);
+        server.enableBackpressure(64, 256);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        final byte[] payload = new byte[256 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        final Socket sender = new Socket("localhost", 5000);
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(payload);
+                sender.getOutputStream().flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+        // Receiver connects after sender has filled the queue
+        Thread.sleep(200);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(5000);
+
+        byte[] received = new byte[payload.length];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+
+        assertTrue(Arrays.equals(payload, received));
+
+        writer.join(1000);
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        server.deregisterChannels();
+        server.shutdown();
+    }
+
+    @Test
+    public void whenPausedReceiverIsLostThenSenderResumesForTheNextOne() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(16, 2000, pool);
+        server.enableBackpressure(64, 256);
+
+        assertSenderResumesForNextReceiver();
+    }
+
+    @Test
+    public void whenPausedRawReceiverIsLostThenSenderResumesForTheNextOne() throws Exception {
+        pool.addRule(5000, 5001, RuleOptions.builder().raw(true).build());
+        server.init(1024, 2000, pool);
+
+        assertSenderResumesForNextReceiver();
+    }
+
+    private void assertSenderResumesForNextReceiver() throws Exception {
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        final Socket sender = new Socket("localhost", 5000);
+        Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress("localhost", 5001));
+        Thread.sleep(50);
+
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(new byte[32 * 1024 * 1024]);
+            } catch (IOException e) {
+                // Sender is closed at the end of the test while still writing
+            }
+        });
+        writer.start();
+
+        // Receiver that never reads fills the queue and pauses the sender, then goes away
+        Thread.sleep(500);
+        stalled.close();
+        Thread.sleep(100);
+
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+
+        byte[] received = new byte[64 * 1024];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+
+        sender.close();
+        receiver.close();
+        writer.join(1000);
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenBulkDataIsSentToPairedConnectionThenItArrivesIntact() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(1024, 2000, pool);
+        server.enableBackpressure(64 * 1024, 256 * 1024);
+        server.enableMultiConnection(new FifoPairing());
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket receiver = new Socket("localhost", 5001);
+        Thread.sleep(50);
+        final Socket sender = new Socket("localhost", 5000);
+        receiver.setSoTimeout(5000);
+
+        // Payload much larger than buffer size makes reads fill their buffers and grow them
+        final byte[] payload = new byte[4 * 1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(payload);
+                sender.getOutputStream().flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+        byte[] received = new byte[payload.length];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+
+        assertTrue(Arrays.equals(payload, received));
+
+        writer.join(1000);
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenServerIsDrainedThenQueuedDataIsWrittenBeforeLoopStops() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, 2000, pool);
+        server.enableBackpressure(16 * 1024, 64 * 1024);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        assertTrue(server.awaitStarted(2000));
+
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(5000);
+        final Socket sender = new Socket("localhost", 5000);
+
+        // Receiver does not read yet, so data is queued for it
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(new byte[4 * 1024 * 1024]);
+            } catch (IOException e) {
+                // Sender is cut off once the server stops
+            }
+        });
+        writer.start();
+        Thread.sleep(300);
+
+        server.drain(5000);
+
+        long received = 0;
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = receiver.getInputStream().read(chunk)) > 0) {
+            received += read;
+        }
+
+        serve.join(2000);
+        assertFalse(serve.isAlive());
+        assertTrue(received > 0);
+        assertEquals(server.getStatus(5000).getSent(), received);
+
+        sender.close();
+        receiver.close();
+        writer.join(1000);
+    }
+
+    @Test
+    public void whenPortOfRuleIsBusyThenStartIsReportedAsFailed() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, 2000, pool);
+
+        try (ServerSocket busy = new ServerSocket(5001)) {
+            Thread serve = new Thread(server);
+            serve.start();
+
+            assertFalse(server.awaitStarted(2000));
+
+            serve.interrupt();
+            serve.join(2000);
+        }
+    }
+
+    @Test
+    public void whenMultiConnectionIsEnabledThenClientsArePairedInArrivalOrder() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, 2000, pool);
+        server.enableMultiConnection(new FifoPairing());
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        // Two clients wait on one port, then two clients come to the other one
+        Socket first = new Socket("localhost", 5000);
+        Thread.sleep(50);
+        Socket second = new Socket("localhost", 5000);
+        Thread.sleep(50);
+        Socket firstPeer = new Socket("localhost", 5001);
+        Thread.sleep(50);
+        Socket secondPeer = new Socket("localhost", 5001);
+        Thread.sleep(50);
+
+        new PrintWriter(second.getOutputStream(), true).println("to second peer");
+        new PrintWriter(first.getOutputStream(), true).println("to first peer");
+
+        firstPeer.setSoTimeout(2000);
+        secondPeer.setSoTimeout(2000);
+        assertEquals("to first peer", new BufferedReader(new InputStreamReader(firstPeer.getInputStream())).readLine());
+        assertEquals("to second peer", new BufferedReader(new InputStreamReader(secondPeer.getInputStream())).readLine());
+
+        // Closing one side closes its pair only
+        first.close();
+        assertEquals(-1, firstPeer.getInputStream().read());
+
+        new PrintWriter(secondPeer.getOutputStream(), true).println("back");
+        second.setSoTimeout(2000);
+        assertEquals("back", new BufferedReader(new InputStreamReader(second.getInputStream())).readLine());
+
+        second.close();
+        firstPeer.close();
+        secondPeer.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenRuleHasSocketOptionsThenItForwardsData() throws Exception {
+        pool.addRule(5000, 5001, RuleOptions.builder()
+                .tcpNoDelay(true)
+                .receiveBufferSize(256 * 1024)
+                .sendBufferSize(256 * 1024)
+                .keepAlive(true)
+                .linger(0)
+                .backlog(16)
+                .reusePort(true)
+                .build());
+        server.init(4096, 2000, pool);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket sender = new Socket("localhost", 5000);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("tuned");
+        assertEquals("tuned", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenRawRuleHasLateReceiverThenNoDataIsLostWithoutBackpressure() throws Exception {
+        pool.addRule(5000, 5001, RuleOptions.builder().raw(true).build());
+        server.init(1024, 2000, pool);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        final Socket sender = new Socket("localhost", 5000);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(5000);
+        Thread.sleep(50);
+
+        final byte[] payload = new byte[8 * 1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 17);
+        }
+
+        Thread writer = new Thread(() -> {
+            try {
+                sender.getOutputStream().write(payload);
+                sender.getOutputStream().flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+
+        // Receiver falls behind, raw pair stops reading instead of dropping what it cannot queue
+        Thread.sleep(300);
+        byte[] received = new byte[payload.length];
+        new DataInputStream(receiver.getInputStream()).readFully(received);
+
+        assertTrue(Arrays.equals(payload, received));
+        assertEquals(0, server.getStatus(5000).getDrops());
+
+        writer.join(1000);
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenRuleIsCapturedThenForwardedDataIsInCaptureFile() throws Exception {
+        Path capture = Files.createTempFile("capture", ".ring");
+        pool.addRule(5000, 5001, RuleOptions.builder().capture(capture.toString()).captureSize(64 * 1024).build());
+        server.init(4096, 2000, pool);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket sender = new Socket("localhost", 5000);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("captured");
+        assertEquals("captured", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        List<CaptureFrame> frames = CaptureRing.read(capture);
+        assertEquals(1, frames.size());
+        assertEquals(5000, frames.get(0).getSource());
+        assertEquals(5001, frames.get(0).getDest());
+        assertEquals("captured\n", new String(frames.get(0).getData(), StandardCharsets.US_ASCII));
+
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+        Files.deleteIfExists(capture);
+    }
+
+    @Test
+    public void whenRuleIsAddedAtRuntimeThenItForwardsData() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, 2000, pool);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        server.addRule(5002, 5003).get(2, TimeUnit.SECONDS);
+
+        Socket sender = new Socket("localhost", 5002);
+        Socket receiver = new Socket("localhost", 5003);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("added");
+        assertEquals("added", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+        assertNotNull(server.getStatus(5002));
+
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenRuleIsDeletedAtRuntimeThenPortsAreUnboundAndOtherRulesStay() throws Exception {
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+        server.init(4096, 2000, pool);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket connected = new Socket("localhost", 5000);
+        Thread.sleep(50);
+
+        server.deleteRule(5001).get(2, TimeUnit.SECONDS);
+
+        // Connection of the deleted rule is closed, its ports do not accept anymore
+        connected.setSoTimeout(2000);
+        assertEquals(-1, connected.getInputStream().read());
+        try {
+            new Socket("localhost", 5001).close();
+            fail("Port of deleted rule still accepts connections");
+        } catch (ConnectException e) {
+            // Expected
+        }
+
+        Socket sender = new Socket("localhost", 5002);
+        Socket receiver = new Socket("localhost", 5003);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("kept");
+        assertEquals("kept", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        connected.close();
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenConnectionHasNoPairForIdleTimeoutThenItIsClosed() throws Exception {
+        pool.addRule(5000, 5001);
+        server.init(4096, 2000, pool);
+        server.enableIdleTimeout(200);
+
+        Thread serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+
+        Socket lonely = new Socket("localhost", 5000);
+        lonely.setSoTimeout(2000);
+
+        long start = System.currentTimeMillis();
+        assertEquals(-1, lonely.getInputStream().read());
+        assertTrue(System.currentTimeMillis() - start >= 150);
+
+        // Port accepts again after closing
+        Socket sender = new Socket("localhost", 5000);
+        Socket receiver = new Socket("localhost", 5001);
+        receiver.setSoTimeout(2000);
+        Thread.sleep(50);
+
+        new PrintWriter(sender.getOutputStream(), true).println("after idle");
+        assertEquals("after idle", new BufferedReader(new InputStreamReader(receiver.getInputStream())).readLine());
+
+        lonely.close();
+        sender.close();
+        receiver.close();
+
+        serve.interrupt();
+        serve.join(2000);
+    }
+
     @After
     public void tearDown() throws Exception {
         if (selector != null && selector.isOpen())
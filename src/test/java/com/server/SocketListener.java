@@ -0,0 +1,46 @@
+package com.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+
+class SocketListener extends Thread {
+
+    final Socket socket;
+    String data;
+
+    SocketListener(Socket socket){
+        this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            // Check if data is on socket
+            BufferedReader in = null;
+
+            try {
+                in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            try {
+                assert in != null;
+
+                data = in.readLine();
+                System.out.println(data);
+                notify();
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+        }
+    }
+
+    String getData() {
+        return data;
+    }
+}
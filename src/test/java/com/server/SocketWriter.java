@@ -0,0 +1,40 @@
+package com.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+class SocketWriter extends Thread {
+
+    private final Socket socket;
+    private final String data;
+    private final long waitFor;
+
+    SocketWriter(Socket socket, String data, long waitForMillis) {
+        this.socket = socket;
+        this.data = data;
+        this.waitFor = waitForMillis;
+    }
+
+    @Override
+    public void run() {
+        PrintWriter out;
+
+        try {
+            Thread.sleep(waitFor);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        try {
+             out = new PrintWriter(socket.getOutputStream(), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // write data to socket
+        out.println(data);
+        System.out.println("Written \"" + data + "\" to socket.");
+    }
+}
@@ -0,0 +1,84 @@
+package com.server.buffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    private BufferPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new BufferPool(4096, 16);
+    }
+
+    @Test
+    public void whenAcquiringThenSizeIsRoundedUpToPowerOfTwoClass() throws Exception {
+        assertEquals(4096, pool.acquire().capacity());
+        assertEquals(8192, pool.acquire(5000).capacity());
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(10).capacity());
+        assertTrue(pool.acquire(10).isDirect());
+    }
+
+    @Test
+    public void whenBufferIsReleasedThenItIsReusedCleared() throws Exception {
+        ByteBuffer buffer = pool.acquire(1000);
+        buffer.put("test".getBytes());
+
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(1000);
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+    }
+
+    @Test
+    public void whenForeignBufferIsReleasedThenItIsNotCached() throws Exception {
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(1000));
+
+        assertEquals(0, pool.getCached());
+    }
+
+    @Test
+    public void whenLeakDetectionIsOnThenUnreleasedBuffersAreCounted() throws Exception {
+        pool.setLeakDetection(true);
+
+        ByteBuffer released = pool.acquire();
+        pool.acquire();
+        pool.release(released);
+
+        assertEquals(1, pool.getLeakCount());
+    }
+
+    @Test
+    public void whenBufferIsReleasedByEndedThreadThenOtherThreadsReuseIt() throws Exception {
+        ByteBuffer[] released = new ByteBuffer[1];
+        Thread copy = new Thread(() -> {
+            released[0] = pool.acquireShared(16 * 1024);
+            pool.releaseShared(released[0]);
+        });
+        copy.start();
+        copy.join();
+
+        assertSame(released[0], pool.acquire(16 * 1024));
+    }
+
+    @Test
+    public void whenManyLargeBuffersAreReleasedThenRetainedBytesAreBounded() throws Exception {
+        ByteBuffer[] buffers = new ByteBuffer[64];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(BufferPool.MAX_SIZE);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+
+        // Thread keeps a single buffer of the largest class, shared lists of 16 chunks keep none
+        assertEquals(1, pool.getCached());
+    }
+}
@@ -0,0 +1,122 @@
+package com.server.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureRingTest {
+    private Path path;
+
+    @Before
+    public void setUp() throws Exception {
+        path = Files.createTempFile("capture", ".ring");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    private static ByteBuffer data(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void whenFramesAreWrittenThenTheyAreReadBackInOrderWithDirection() throws Exception {
+        CaptureRing ring = CaptureRing.create(path, 4096, 1024);
+
+        ByteBuffer request = data("request");
+        ring.write(5000, 5001, request);
+        ring.write(5001, 5000, data("response"));
+
+        // Captured data is left to the forwarding path
+        assertEquals(0, request.position());
+
+        List<CaptureFrame> frames = CaptureRing.read(path);
+        ring.close();
+
+        assertEquals(2, frames.size());
+        assertEquals(5000, frames.get(0).getSource());
+        assertEquals(5001, frames.get(0).getDest());
+        assertEquals("request", new String(frames.get(0).getData(), StandardCharsets.US_ASCII));
+        assertEquals(5001, frames.get(1).getSource());
+        assertEquals("response", new String(frames.get(1).getData(), StandardCharsets.US_ASCII));
+        assertTrue(frames.get(0).getTimestampMicros() <= frames.get(1).getTimestampMicros());
+    }
+
+    @Test
+    public void whenReadIsLargerThanFrameLimitThenItIsTruncatedAndLengthIsKept() throws Exception {
+        CaptureRing ring = CaptureRing.create(path, 4096, 4);
+        ByteBuffer read = data("truncated");
+        ring.write(5000, 5001, read);
+        ring.close();
+        assertEquals(0, read.position());
+        assertEquals(9, read.limit());
+
+        CaptureFrame frame = CaptureRing.read(path).get(0);
+        assertEquals(9, frame.getLength());
+        assertEquals("trun", new String(frame.getData(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void whenRingIsFullThenOldestFramesAreOverwritten() throws Exception {
+        // Room for a handful of frames, file size never changes
+        CaptureRing ring = CaptureRing.create(path, 512, 64);
+        for (int i = 0; i < 1000; i++) {
+            ring.write(5000, 5001, data("frame " + i));
+        }
+        assertEquals(1000, ring.getTotal());
+        ring.close();
+
+        assertEquals(512, Files.size(path));
+
+        List<CaptureFrame> frames = CaptureRing.read(path);
+        assertTrue(frames.size() > 5);
+
+        // Frames left are the latest ones, in order and without gaps
+        int first = 1000 - frames.size();
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals("frame " + (first + i), new String(frames.get(i).getData(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void whenFramesAreExportedToPcapThenEveryFrameIsAPacket() throws Exception {
+        CaptureRing ring = CaptureRing.create(path, 4096, 1024);
+        ring.write(5000, 5001, data("ping"));
+        ring.write(5001, 5000, data("pong"));
+        ring.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CaptureExport.writePcap(CaptureRing.read(path), out);
+
+        DataInputStream pcap = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(CaptureExport.PCAP_MAGIC, pcap.readInt());
+        pcap.skipBytes(16);
+        assertEquals(CaptureExport.LINKTYPE_USER0, pcap.readInt());
+
+        for (String payload : new String[]{"ping", "pong"}) {
+            pcap.skipBytes(8);
+            assertEquals(8, pcap.readInt());
+            assertEquals(8, pcap.readInt());
+            pcap.skipBytes(4);
+
+            byte[] data = new byte[4];
+            pcap.readFully(data);
+            assertTrue(Arrays.equals(payload.getBytes(StandardCharsets.US_ASCII), data));
+        }
+        assertEquals(-1, pcap.read());
+    }
+}
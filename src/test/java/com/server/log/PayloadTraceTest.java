@@ -0,0 +1,45 @@
+package com.server.log;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PayloadTraceTest {
+
+    @Test
+    public void whenPortIsEnabledThenOnlyItIsTraced() throws Exception {
+        PayloadTrace.enable(65535);
+
+        assertTrue(PayloadTrace.isEnabled(65535));
+        assertFalse(PayloadTrace.isEnabled(65534));
+
+        PayloadTrace.disable(65535);
+        assertFalse(PayloadTrace.isEnabled(65535));
+    }
+
+    @Test
+    public void whenPortIsOutOfRangeThenEverySwitchRejectsIt() throws Exception {
+        for (int port : new int[]{-1, 65536}) {
+            try {
+                PayloadTrace.enable(port);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            try {
+                PayloadTrace.disable(port);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            try {
+                PayloadTrace.isEnabled(port);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
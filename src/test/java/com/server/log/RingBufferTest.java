@@ -0,0 +1,65 @@
+package com.server.log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+    private RingBuffer<Integer> ring;
+
+    @Before
+    public void setUp() throws Exception {
+        ring = new RingBuffer<>(4);
+    }
+
+    @Test
+    public void whenItemsAreOfferedThenTheyArePolledInOrder() throws Exception {
+        ring.offer(1);
+        ring.offer(2);
+
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void whenRingIsFullThenItemIsDroppedAndCounted() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+
+        assertFalse(ring.offer(4));
+        assertEquals(1, ring.getDropped());
+
+        // Slot is reused once consumer frees it
+        ring.poll();
+        assertTrue(ring.offer(5));
+    }
+
+    @Test
+    public void whenManyProducersOfferThenEveryAcceptedItemIsDrained() throws Exception {
+        final RingBuffer<Integer> big = new RingBuffer<>(1 << 16);
+        List<Thread> producers = new ArrayList<>();
+
+        for (int p = 0; p < 4; p++) {
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    big.offer(i);
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(40000, big.drain(item -> { }, Integer.MAX_VALUE));
+        assertEquals(0, big.getDropped());
+    }
+}
@@ -0,0 +1,113 @@
+package com.server.metrics;
+
+import com.server.BlockingServer;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import com.server.status.IStatus;
+import com.server.status.Status;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OpenMetricsFormatTest {
+
+    @Test
+    public void whenStatusHasTrafficThenCountersAreWrittenPerRule() throws Exception {
+        Status status = new Status(new AbstractMap.SimpleImmutableEntry<>(5000, 5001));
+        status.addSent(100);
+        status.addRecv(40);
+        status.addAccept();
+        status.recordDwell(2_000_000);
+
+        String text = OpenMetricsFormat.write(Collections.<IStatus>singletonList(status), Collections.emptyList());
+
+        assertTrue(text.contains("# TYPE tunnel_sent_bytes counter\n"));
+        assertTrue(text.contains("tunnel_sent_bytes_total{rule=\"5000:5001\"} 100\n"));
+        assertTrue(text.contains("tunnel_received_bytes_total{rule=\"5000:5001\"} 40\n"));
+        assertTrue(text.contains("tunnel_accepts_total{rule=\"5000:5001\"} 1\n"));
+        assertTrue(text.contains("tunnel_connected{rule=\"5000:5001\"} 0\n"));
+        assertTrue(text.contains("tunnel_dwell_seconds_count{rule=\"5000:5001\"} 1\n"));
+        assertTrue(text.contains("tunnel_dwell_seconds{rule=\"5000:5001\",quantile=\"0.5\"} 0.00"));
+        assertFalse(text.contains("tunnel_loop_selects"));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void whenEndpointIsScrapedThenMetricsOfServerAreReturned() throws Exception {
+        ManageablePortPool pool = new PortPool();
+        pool.addRule(5000, 5001);
+        BlockingServer server = new BlockingServer();
+        server.init(4096, pool);
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(server);
+        endpoint.start(new InetSocketAddress("localhost", 0));
+
+        try {
+            URL url = new URL("http://localhost:" + endpoint.getPort() + MetricsEndpoint.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(OpenMetricsFormat.CONTENT_TYPE, connection.getContentType());
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] chunk = new byte[4096];
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    body.write(chunk, 0, read);
+                }
+            }
+
+            String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+            assertTrue(text.contains("tunnel_sent_bytes_total{rule=\"5000:5001\"} 0\n"));
+            assertTrue(text.endsWith("# EOF\n"));
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void whenMetricsCanNotBeRenderedThenScrapeGetsServerError() throws Exception {
+        BlockingServer server = new BlockingServer() {
+            @Override
+            public List<IStatus> getStatuses() {
+                throw new IllegalStateException("Statuses are not available.");
+            }
+        };
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(server);
+        endpoint.start(new InetSocketAddress("localhost", 0));
+
+        try {
+            URL url = new URL("http://localhost:" + endpoint.getPort() + MetricsEndpoint.PATH);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+            assertEquals(500, connection.getResponseCode());
+        } finally {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void whenEndpointIsNotRunningThenItHasNoPort() throws Exception {
+        MetricsEndpoint endpoint = new MetricsEndpoint(new BlockingServer());
+        assertEquals(-1, endpoint.getPort());
+
+        endpoint.start(new InetSocketAddress("localhost", 0));
+        assertTrue(endpoint.getPort() > 0);
+
+        endpoint.stop();
+        assertEquals(-1, endpoint.getPort());
+        endpoint.stop();
+    }
+}
@@ -6,6 +6,8 @@ import org.junit.Test;
 
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -40,7 +42,7 @@ public class PortPoolTest {
         tester.addRule(5000, 5001);
         tester.addRule(5002, 5003);
 
-        ArrayList<Integer> ports = tester.getPorts();
+        List<Integer> ports = tester.getPorts();
         ArrayList<Integer> expected = new ArrayList<>();
 
         expected.add(5000);
@@ -71,6 +73,79 @@ public class PortPoolTest {
         assertEquals(5001, tester.getRule(5000));
     }
 
+    @Test
+    public void whenRulesAreListedThenPairsKeepOrderOfAddition() throws Exception {
+        tester.addRule(5002, 5003);
+        tester.addRule(5000, 5001);
+
+        Map<Integer, Integer> rules = tester.getRules();
+
+        assertEquals(2, rules.size());
+        assertEquals(Integer.valueOf(5003), rules.get(5002));
+        assertEquals(Integer.valueOf(5001), rules.get(5000));
+        assertEquals(Integer.valueOf(5002), rules.keySet().iterator().next());
+    }
+
+    @Test
+    public void whenPoolIsNotChangedThenListingsAreCached() throws Exception {
+        tester.addRule(5000, 5001);
+
+        assertSame(tester.getPorts(), tester.getPorts());
+        assertSame(tester.getRules(), tester.getRules());
+    }
+
+    @Test
+    public void whenPoolIsChangedThenListingsAreRebuilt() throws Exception {
+        tester.addRule(5000, 5001);
+        List<Integer> ports = tester.getPorts();
+
+        tester.addRule(5002, 5003);
+        assertEquals(2, ports.size());
+        assertEquals(4, tester.getPorts().size());
+
+        tester.deleteRule(5001);
+        assertEquals(1, tester.getRules().size());
+        assertEquals(Integer.valueOf(5003), tester.getRules().get(5002));
+    }
+
+    @Test (expected = UnsupportedOperationException.class)
+    public void whenListingIsModifiedThenExceptionIsThrown() throws Exception {
+        tester.addRule(5000, 5001);
+        tester.getPorts().add(5002);
+    }
+
+    @Test (expected = InvalidParameterException.class)
+    public void whenPortIsOutOfRangeThenThrowException() throws Exception {
+        tester.addRule(5000, 70000);
+    }
+
+    @Test
+    public void whenOutOfRangePortAccessedThenZeroIsReturned() throws Exception {
+        assertEquals(0, tester.getRule(70000));
+        assertEquals(0, tester.getRule(-1));
+    }
+
+    @Test
+    public void whenRuleHasOptionsThenBothPortsHaveThem() throws Exception {
+        RuleOptions options = RuleOptions.builder().tcpNoDelay(true).backlog(512).build();
+        tester.addRule(5000, 5001, options);
+        tester.addRule(5002, 5003);
+
+        assertEquals(options, tester.getOptions(5000));
+        assertEquals(options, tester.getOptions(5001));
+        assertSame(RuleOptions.DEFAULT, tester.getOptions(5002));
+        assertSame(RuleOptions.DEFAULT, tester.getOptions(6000));
+    }
+
+    @Test
+    public void whenRuleIsDeletedThenItsOptionsAreDropped() throws Exception {
+        tester.addRule(5000, 5001, RuleOptions.builder().receiveBufferSize(1 << 20).build());
+        tester.deleteRule(5001);
+
+        assertSame(RuleOptions.DEFAULT, tester.getOptions(5000));
+        assertSame(RuleOptions.DEFAULT, tester.getOptions(5001));
+    }
+
     @After
     public void tearDown() throws Exception {
     }
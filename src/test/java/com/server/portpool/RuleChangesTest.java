@@ -0,0 +1,52 @@
+package com.server.portpool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RuleChangesTest {
+    private Map<Integer, Integer> current;
+    private Map<Integer, Integer> target;
+
+    @Before
+    public void setUp() throws Exception {
+        current = new HashMap<>();
+        target = new HashMap<>();
+        current.put(5000, 5001);
+        current.put(5002, 5003);
+    }
+
+    @Test
+    public void whenRulesAreSameThenNothingChanges() throws Exception {
+        target.put(5001, 5000);
+        target.put(5002, 5003);
+
+        assertTrue(RuleChanges.between(current, target).isEmpty());
+    }
+
+    @Test
+    public void whenRuleIsMissingThenItIsRemoved() throws Exception {
+        target.put(5000, 5001);
+
+        RuleChanges changes = RuleChanges.between(current, target);
+
+        assertEquals(Collections.singletonList(5002), changes.getRemoved());
+        assertTrue(changes.getAdded().isEmpty());
+    }
+
+    @Test
+    public void whenRuleIsRePointedThenItIsRemovedAndAdded() throws Exception {
+        target.put(5000, 5004);
+        target.put(5002, 5003);
+
+        RuleChanges changes = RuleChanges.between(current, target);
+
+        assertEquals(Collections.singletonList(5000), changes.getRemoved());
+        assertEquals(Collections.singletonMap(5000, 5004), changes.getAdded());
+    }
+}
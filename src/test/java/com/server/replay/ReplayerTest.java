@@ -0,0 +1,117 @@
+package com.server.replay;
+
+import com.server.Server;
+import com.server.capture.CaptureFrame;
+import com.server.capture.CaptureRing;
+import com.server.portpool.ManageablePortPool;
+import com.server.portpool.PortPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplayerTest {
+    private Thread serve;
+
+    @Before
+    public void setUp() throws Exception {
+        ManageablePortPool pool = new PortPool();
+        pool.addRule(5000, 5001);
+        pool.addRule(5002, 5003);
+
+        Server server = new Server();
+        server.init(4096, 2000, pool);
+        serve = new Thread(server);
+        serve.start();
+        Thread.sleep(100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serve.interrupt();
+        serve.join(2000);
+    }
+
+    @Test
+    public void whenSyntheticProfileIsReplayedOnPairsThenEveryByteArrivesUnchanged() throws Exception {
+        ReplayProfile profile = ReplayProfile.synthetic(200, 300, 5000, 0, 7);
+        assertEquals(400, profile.size());
+
+        ReplayReport report = new Replayer("localhost", 5000, 2, 0).run(profile);
+
+        assertTrue(report.toString(), report.isExact());
+        assertEquals(2, report.getPairs());
+        assertEquals(800, report.getMessages());
+        assertEquals(2 * 200 * (300 + 5000), report.getBytesReceived());
+        assertEquals(800, report.getLatency().getCount());
+        assertTrue(report.getThroughput() > 0);
+    }
+
+    @Test
+    public void whenCaptureIsReplayedThenItsSenderUsesFirstPort() throws Exception {
+        Path path = Files.createTempFile("capture", ".ring");
+        CaptureRing ring = CaptureRing.create(path, 64 * 1024, 1024);
+        // Capture of another rule, its client side spoke first
+        ring.write(7001, 7000, ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII)));
+        ring.write(7000, 7001, ByteBuffer.wrap("hi there".getBytes(StandardCharsets.US_ASCII)));
+        ring.write(7001, 7000, ByteBuffer.wrap(new byte[2048]));
+        ring.close();
+
+        ReplayProfile profile = ReplayProfile.fromCapture(CaptureRing.read(path));
+        Files.deleteIfExists(path);
+
+        assertEquals(3, profile.getData(true).size() + profile.getData(false).size());
+        assertEquals(2, profile.getData(true).size());
+        // Frame was stored truncated, it is replayed in full length
+        assertEquals(2048, profile.getData(true).get(1).length);
+
+        ReplayReport report = new Replayer("localhost", 5000, 1, 1).run(profile);
+
+        assertTrue(report.toString(), report.isExact());
+        assertEquals(5 + 8 + 2048, report.getBytesReceived());
+        assertEquals(3, report.getLatency().getCount());
+    }
+
+    @Test
+    public void whenProfileHasQuietGapLongerThanTimeoutThenReceiverWaitsForScheduledMessage() throws Exception {
+        byte[] empty = new byte[0];
+        List<CaptureFrame> frames = Arrays.asList(
+                new CaptureFrame(0, 7000, 7001, 5, "early".getBytes(StandardCharsets.US_ASCII)),
+                new CaptureFrame(1000, 7000, 7001, 0, empty),
+                new CaptureFrame(800000, 7000, 7001, 4, "late".getBytes(StandardCharsets.US_ASCII)),
+                new CaptureFrame(800000, 7001, 7000, 0, empty));
+        ReplayProfile profile = ReplayProfile.fromCapture(frames);
+
+        Replayer replayer = new Replayer("localhost", 5000, 1, 1);
+        replayer.setTimeout(300);
+        ReplayReport report = replayer.run(profile);
+
+        assertTrue(report.toString(), report.isExact());
+        assertEquals(9, report.getBytesReceived());
+    }
+
+    @Test
+    public void whenNoTunnelForwardsThenReportShowsMissingBytes() throws Exception {
+        // Plain listeners accept both ends and never forward
+        try (ServerSocket first = new ServerSocket(5004);
+             ServerSocket second = new ServerSocket(5005)) {
+            Replayer replayer = new Replayer("localhost", 5004, 1, 0);
+            replayer.setTimeout(200);
+
+            ReplayReport report = replayer.run(ReplayProfile.synthetic(3, 10, 10, 0, 1));
+
+            assertFalse(report.isExact());
+            assertEquals(60, report.getBytesSent());
+            assertEquals(0, report.getBytesReceived());
+        }
+    }
+}
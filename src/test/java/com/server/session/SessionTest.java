@@ -1,10 +1,15 @@
 package com.server.session;
 
+import com.server.buffer.BufferPool;
+import com.server.status.LatencyRecorder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 
 import static org.junit.Assert.*;
 
@@ -295,6 +300,252 @@ public class SessionTest {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void whenAppendingThenOnlyRemainingDataIsStored() throws Exception {
+        session.init(20, 2000, 5000);
+        ByteBuffer buffer = ByteBuffer.wrap("test123".getBytes());
+        // part of data is already consumed
+        buffer.position(4);
+
+        session.append(buffer);
+
+        assertEquals("31 32 33", session.getBufferAsString());
+    }
+
+    @Test
+    public void whenFlushingToChannelThenDataIsWrittenAndSessionIsEmpty() throws Exception {
+        session.init(20, 2000, 5000);
+        session.write(ByteBuffer.wrap("test".getBytes()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = session.flushTo(Channels.newChannel(out));
+
+        assertEquals(4, written);
+        assertEquals("test", out.toString());
+        assertFalse(session.hasData());
+    }
+
+    @Test
+    public void whenReadBufferIsHandedOverThenPeerWritesItAndReturnsToPool() throws Exception {
+        BufferPool pool = new BufferPool(20, 4);
+        Session source = new Session();
+        source.setBufferPool(pool);
+        source.init(20, 2000, 5000);
+        session.setBufferPool(pool);
+        session.init(20, 2000, 5001);
+
+        ByteBuffer read = source.getReadBuffer();
+        assertTrue(read.isDirect());
+        read.put("test".getBytes());
+        read.flip();
+
+        session.enqueue(source.takeReadBuffer());
+        // source gets a fresh buffer, handed over one belongs to the peer now
+        assertNotSame(read, source.getReadBuffer());
+        assertEquals(4, session.getQueuedBytes());
+
+        int cached = pool.getCached();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        session.flushTo(Channels.newChannel(out));
+
+        assertEquals("test", out.toString());
+        assertFalse(session.hasData());
+        assertEquals(cached + 1, pool.getCached());
+    }
+
+    @Test
+    public void whenQueuedDataIsDroppedThenDroppedBytesAreCounted() throws Exception {
+        session.init(8, 2000, 5000);
+
+        session.enqueue(ByteBuffer.wrap("first!".getBytes()));
+        session.enqueue(ByteBuffer.wrap("second".getBytes()));
+
+        assertEquals(6, session.takeDroppedBytes());
+        assertEquals(0, session.takeDroppedBytes());
+        assertEquals(6, session.getQueuedBytes());
+    }
+
+    @Test
+    public void whenQueuedChunkIsWrittenThenItsLatencyIsRecorded() throws Exception {
+        session.init(4096, 2000, 5000);
+        final long[] recorded = new long[2];
+        session.setLatencyRecorder(new LatencyRecorder() {
+            public void recordDwell(long nanos) {
+                recorded[0] = nanos;
+            }
+
+            public void recordQueueTime(long nanos) {
+                recorded[1] = nanos;
+            }
+        });
+
+        long readAt = System.nanoTime() - 1000000;
+        session.enqueue(ByteBuffer.wrap("test".getBytes()), readAt);
+        session.flushTo(Channels.newChannel(new ByteArrayOutputStream()));
+
+        assertTrue(recorded[0] >= 1000000);
+        assertTrue(recorded[1] >= 0 && recorded[1] < recorded[0]);
+    }
+
+    @Test
+    public void whenChunksAreQueuedThenTheyAreWrittenByOneGatheringWrite() throws Exception {
+        session.init(4096, 2000, 5000);
+        session.enqueue(ByteBuffer.wrap("first ".getBytes()));
+        session.enqueue(ByteBuffer.wrap("second ".getBytes()));
+        session.enqueue(ByteBuffer.wrap("third".getBytes()));
+
+        GatheringSink sink = new GatheringSink(Integer.MAX_VALUE);
+
+        assertEquals(18, session.flushTo(sink));
+        assertEquals(1, sink.calls);
+        assertEquals("first second third", sink.out.toString());
+        assertFalse(session.hasData());
+    }
+
+    @Test
+    public void whenGatheringWriteIsPartialThenRestIsKeptInOrder() throws Exception {
+        session.init(4096, 2000, 5000);
+        session.enqueue(ByteBuffer.wrap("first ".getBytes()));
+        session.enqueue(ByteBuffer.wrap("second".getBytes()));
+
+        GatheringSink sink = new GatheringSink(8);
+
+        assertEquals(8, session.flushTo(sink));
+        assertEquals(4, session.getQueuedBytes());
+        assertTrue(session.hasData());
+
+        assertEquals(4, session.flushTo(sink));
+        assertEquals("first second", sink.out.toString());
+        assertFalse(session.hasData());
+    }
+
+    // Channel taking at most limit bytes per write
+    private static class GatheringSink implements GatheringByteChannel {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final int limit;
+        private int calls = 0;
+
+        GatheringSink(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            calls++;
+            long written = 0;
+
+            for (int i = offset; i < offset + length && written < limit; i++) {
+                while (srcs[i].hasRemaining() && written < limit) {
+                    out.write(srcs[i].get());
+                    written++;
+                }
+            }
+
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void whenReadsFillBufferThenReadBufferGrows() throws Exception {
+        session.init(1024, 2000, 5000);
+        session.setLossless(true);
+        assertEquals(1024, session.getReadBuffer().capacity());
+
+        session.recordRead(1024);
+        assertEquals(2048, session.getReadBuffer().capacity());
+
+        for (int i = 0; i < 10; i++) {
+            session.recordRead(session.getReadBuffer().capacity());
+        }
+        assertEquals(RecvSizer.MAX_SIZE, session.getReadBuffer().capacity());
+    }
+
+    @Test
+    public void whenReadsAreSmallThenReadBufferShrinksAfterSecondRead() throws Exception {
+        session.init(4096, 2000, 5000);
+        session.setLossless(true);
+        session.getReadBuffer();
+
+        session.recordRead(100);
+        assertEquals(4096, session.getReadBuffer().capacity());
+
+        session.recordRead(100);
+        assertEquals(2048, session.getReadBuffer().capacity());
+
+        for (int i = 0; i < 20; i++) {
+            session.recordRead(0);
+        }
+        assertEquals(RecvSizer.MIN_SIZE, session.getReadBuffer().capacity());
+    }
+
+    @Test
+    public void whenSessionIsLossyThenReadBufferDoesNotOutgrowBufferSize() throws Exception {
+        session.init(1024, 2000, 5000);
+        session.setLossless(false);
+        session.getReadBuffer();
+
+        session.recordRead(1024);
+        session.recordRead(1024);
+        assertEquals(1024, session.getReadBuffer().capacity());
+    }
+
+    @Test
+    public void whenSessionIsRawThenReadBufferKeepsRawSizeAndDataIsKept() throws Exception {
+        session.init(1024, 2000, 5000);
+        session.setRaw(true);
+        assertTrue(session.isLossless());
+
+        ByteBuffer buffer = session.getReadBuffer();
+        assertEquals(Session.RAW_READ_SIZE, buffer.capacity());
+
+        for (int i = 0; i < 4; i++) {
+            session.recordRead(10);
+        }
+        assertSame(buffer, session.getReadBuffer());
+
+        // Queue of a raw session takes more than its buffer size without dropping
+        ByteBuffer chunk = ByteBuffer.allocateDirect(4096);
+        chunk.put(new byte[4096]).flip();
+        session.enqueue(chunk);
+        assertEquals(4096, session.getQueuedBytes());
+        assertEquals(0, session.takeDroppedBytes());
+    }
+
+    @Test
+    public void whenReadBufferHoldsDataThenItIsNotSwapped() throws Exception {
+        session.init(1024, 2000, 5000);
+        session.setLossless(true);
+        ByteBuffer buffer = session.getReadBuffer();
+        buffer.put(new byte[1024]);
+
+        session.recordRead(1024);
+        assertSame(buffer, session.getReadBuffer());
+
+        buffer.flip();
+        assertSame(buffer, session.takeReadBuffer());
+        assertEquals(1024, buffer.remaining());
+        assertEquals(2048, session.getReadBuffer().capacity());
+    }
+
     @After
     public void tearDown() throws Exception {
     }
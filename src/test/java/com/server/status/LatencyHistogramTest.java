@@ -0,0 +1,93 @@
+package com.server.status;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    private LatencyHistogram histogram;
+
+    @Before
+    public void setUp() throws Exception {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    public void whenNothingIsRecordedThenSnapshotIsEmpty() throws Exception {
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getP99());
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void whenValuesAreRecordedThenPercentilesAreWithinPrecision() throws Exception {
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000000, snapshot.getMax());
+        assertEquals(50000000, snapshot.getP50(), 50000000 / 16.0);
+        assertEquals(99000000, snapshot.getP99(), 99000000 / 16.0);
+        assertEquals(99900000, snapshot.getP999(), 99900000 / 16.0);
+    }
+
+    @Test
+    public void whenFewValuesAreRecordedThenTailIsMax() throws Exception {
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(5000000);
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(20, snapshot.getP50());
+        assertEquals(5000000, snapshot.getP99());
+        assertEquals(5000000, snapshot.getMax());
+    }
+
+    @Test
+    public void whenValueIsLargeThenBucketBoundsContainIt() throws Exception {
+        long[] values = {0, 127, 128, 1000, 123456789, Long.MAX_VALUE};
+
+        for (LatencyHistogram histogram : new LatencyHistogram[]{this.histogram, new LatencyHistogram(6)}) {
+            for (long value : values) {
+                int index = histogram.indexOf(value);
+
+                assertTrue(histogram.valueOf(index) >= value);
+                assertTrue(index == 0 || histogram.valueOf(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void whenPrecisionIsFinerThenPercentilesAreCloser() throws Exception {
+        histogram = new LatencyHistogram(6);
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000);
+        }
+
+        LatencySnapshot snapshot = histogram.snapshot();
+
+        assertEquals(50000000, snapshot.getP50(), 50000000 / 64.0);
+        assertEquals(99000000, snapshot.getP99(), 99000000 / 64.0);
+    }
+
+    @Test
+    public void whenNothingIsRecordedSinceSnapshotThenItIsReused() throws Exception {
+        histogram.record(1000);
+        LatencySnapshot first = histogram.snapshot();
+
+        assertSame(first, histogram.snapshot());
+
+        histogram.record(2000);
+        LatencySnapshot second = histogram.snapshot();
+
+        assertNotSame(first, second);
+        assertEquals(2, second.getCount());
+    }
+}
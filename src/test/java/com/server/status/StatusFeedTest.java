@@ -0,0 +1,89 @@
+package com.server.status;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StatusFeedTest {
+    private List<IStatus> statuses;
+    private StatusFeed feed;
+    private List<List<StatusSnapshot>> changes;
+    private List<List<Map.Entry<Integer, Integer>>> removals;
+
+    @Before
+    public void setUp() throws Exception {
+        statuses = new ArrayList<>();
+        feed = new StatusFeed(() -> new ArrayList<>(statuses), 100);
+        changes = new ArrayList<>();
+        removals = new ArrayList<>();
+        feed.addListener((changed, removed) -> {
+            changes.add(changed);
+            removals.add(removed);
+        });
+    }
+
+    private Status addRule(int portA, int portB) {
+        Status status = new Status(new AbstractMap.SimpleImmutableEntry<>(portA, portB));
+        statuses.add(status);
+        return status;
+    }
+
+    @Test
+    public void whenRuleIsUpdatedSeveralTimesThenOneEventCarriesLatestValues() throws Exception {
+        Status first = addRule(5000, 5001);
+        addRule(5002, 5003);
+
+        // New rules are reported once
+        feed.poll();
+        assertEquals(1, changes.size());
+        assertEquals(2, changes.get(0).size());
+
+        first.addSent(10);
+        first.addSent(20);
+        first.setConnected(true);
+        feed.poll();
+
+        assertEquals(2, changes.size());
+        assertEquals(1, changes.get(1).size());
+        assertEquals(5000, (int) changes.get(1).get(0).getRule().getKey());
+        assertEquals(30, changes.get(1).get(0).getSent());
+        assertTrue(changes.get(1).get(0).isConnected());
+    }
+
+    @Test
+    public void whenNothingChangedThenListenersAreNotCalled() throws Exception {
+        addRule(5000, 5001);
+        feed.poll();
+        feed.poll();
+        feed.poll();
+
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void whenRuleIsRemovedOrReplacedThenItIsReported() throws Exception {
+        Status removed = addRule(5000, 5001);
+        addRule(5002, 5003);
+        feed.poll();
+
+        statuses.remove(removed);
+        feed.poll();
+        assertEquals(1, removals.get(1).size());
+        assertEquals(removed.getRule(), removals.get(1).get(0));
+        assertTrue(changes.get(1).isEmpty());
+
+        // Rule applied again gets a new status, which is reported even before any traffic
+        Status replaced = new Status(new AbstractMap.SimpleImmutableEntry<>(5002, 5003));
+        replaced.takeChanged();
+        statuses.set(0, replaced);
+        feed.poll();
+        assertEquals(1, changes.get(2).size());
+        assertTrue(removals.get(2).isEmpty());
+    }
+}
@@ -0,0 +1,80 @@
+package com.server.status;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatusTest {
+    private Status status;
+
+    @Before
+    public void setUp() throws Exception {
+        status = new Status(new AbstractMap.SimpleImmutableEntry<>(5000, 5001));
+    }
+
+    @Test
+    public void whenBytesAreAddedThenMessagesAreCounted() throws Exception {
+        status.addSent(10);
+        status.addSent(20);
+        status.addRecv(5);
+
+        assertEquals(30, status.getSent());
+        assertEquals(2, status.getMessagesSent());
+        assertEquals(5, status.getRecv());
+        assertEquals(1, status.getMessagesRecv());
+    }
+
+    @Test
+    public void whenCountersPassIntRangeThenTheyDoNotOverflow() throws Exception {
+        status.addSent(Integer.MAX_VALUE);
+        status.addSent(Integer.MAX_VALUE);
+
+        assertEquals(2L * Integer.MAX_VALUE, status.getSent());
+    }
+
+    @Test
+    public void whenSeveralThreadsUpdateCountersThenNoUpdateIsLost() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    status.addSent(1);
+                    status.addAccept();
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400000, status.getSent());
+        assertEquals(400000, status.getMessagesSent());
+        assertEquals(400000, status.getAccepts());
+    }
+
+    @Test
+    public void whenSnapshotIsTakenThenLaterUpdatesDoNotChangeIt() throws Exception {
+        status.addSent(100);
+        status.addDrops(7);
+        status.setConnected(true);
+
+        StatusSnapshot snapshot = status.snapshot();
+        status.addSent(100);
+        status.setConnected(false);
+
+        assertEquals(100, snapshot.getSent());
+        assertEquals(7, snapshot.getDrops());
+        assertTrue(snapshot.isConnected());
+        assertEquals(status.getRule(), snapshot.getRule());
+        assertSame(snapshot, snapshot.snapshot());
+    }
+}
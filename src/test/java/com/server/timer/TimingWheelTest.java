@@ -0,0 +1,118 @@
+package com.server.timer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    private TimingWheel wheel;
+    private List<String> expired;
+
+    private class Named extends TimingWheel.Timeout {
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void expire(long now) {
+            expired.add(name);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        wheel = new TimingWheel(8, 10, 1000);
+        expired = new ArrayList<>();
+    }
+
+    @Test
+    public void whenDeadlinePassesThenTimeoutExpiresOnce() throws Exception {
+        Named timeout = new Named("a");
+        wheel.schedule(timeout, 1050);
+
+        assertEquals(0, wheel.advance(1049));
+        assertEquals(1, wheel.advance(1050));
+        assertEquals(0, wheel.advance(1200));
+
+        assertEquals(1, expired.size());
+        assertFalse(timeout.isScheduled());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void whenDeadlineIsBeyondOneRevolutionThenTimeoutWaitsForItsTurn() throws Exception {
+        wheel.schedule(new Named("far"), 1500);
+
+        // 80 ms revolution passes the slot of the deadline several times
+        for (long now = 1000; now < 1500; now += 10) {
+            wheel.advance(now);
+        }
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(1500);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void whenTimeoutIsCancelledThenItDoesNotExpire() throws Exception {
+        Named timeout = new Named("a");
+        wheel.schedule(timeout, 1020);
+        wheel.cancel(timeout);
+
+        wheel.advance(1100);
+
+        assertTrue(expired.isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void whenTimeoutIsRescheduledThenOnlyNewDeadlineCounts() throws Exception {
+        Named timeout = new Named("a");
+        wheel.schedule(timeout, 1020);
+        wheel.schedule(timeout, 1200);
+
+        wheel.advance(1100);
+        assertTrue(expired.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(1200);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void whenExpiringTimeoutCancelsAnotherDueOneThenOtherDoesNotExpire() throws Exception {
+        final Named second = new Named("second");
+        Named first = new Named("first") {
+            @Override
+            protected void expire(long now) {
+                super.expire(now);
+                wheel.cancel(second);
+            }
+        };
+
+        // Both land in one slot, the one scheduled last is visited first
+        wheel.schedule(second, 1030);
+        wheel.schedule(first, 1030);
+
+        wheel.advance(1030);
+
+        assertEquals(1, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void whenLoopWasPausedForLongThenEverythingDueExpires() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule(new Named("t" + i), 1000 + i * 7);
+        }
+
+        assertEquals(20, wheel.advance(100000));
+        assertTrue(wheel.isEmpty());
+    }
+}